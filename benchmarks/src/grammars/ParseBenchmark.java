@@ -0,0 +1,171 @@
+package grammars;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java_cup.runtime.Scanner;
+import java_cup.runtime.Symbol;
+import java_cup.runtime.lr_parser;
+
+/**
+ * Base of the parse benchmarks of the test grammars. Each benchmark scans and
+ * parses an input held in memory with a generated parser, once for throughput
+ * and once for latency. The small input is the sample input of the grammar,
+ * the large one is made of many copies of its statements.
+ * <p>
+ *
+ * The throughput benchmark also counts the tokens it parses, which JMH reports
+ * as tokens/s next to the parses/s. Run with -prof gc for the allocation rate;
+ * the allocation per token is gc.alloc.rate.norm divided by the tokens per
+ * parse, which setup() prints.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public abstract class ParseBenchmark {
+  @Param({ "small", "large" })
+  public String size;
+
+  /** The input. */
+  protected String input;
+
+  /** The number of tokens of the input. */
+  protected long tokens;
+
+  /** The tokens parsed, reported as a rate. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Tokens {
+    public long tokens;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      tokens = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    input = input("large".equals(size));
+    tokens = count();
+    System.out.println();
+    System.out.println("# " + getClass().getSimpleName() + " " + size + ": " + input.length() + " chars, " + tokens
+        + " tokens");
+    prepare();
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    finish();
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- Benchmarks --------------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public Object throughput(Tokens counter) throws Exception {
+    counter.tokens += tokens;
+    return parser().parse().value;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Object latency() throws Exception {
+    return parser().parse().value;
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- Grammars ----------------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Creates the input
+   *
+   * @param large whether to create the large input
+   */
+  protected abstract String input(boolean large) throws IOException;
+
+  /**
+   * Creates a parser for the input, with a new scanner.
+   */
+  protected abstract lr_parser parser() throws Exception;
+
+  /**
+   * Called before measuring, after the input was created.
+   */
+  protected void prepare() {
+  }
+
+  /**
+   * Called after measuring.
+   */
+  protected void finish() {
+  }
+
+  /**
+   * Counts the tokens of the input by parsing it once. Grammars whose parser
+   * does not read from its Scanner count them otherwise.
+   */
+  protected long count() throws Exception {
+    lr_parser p = parser();
+    Scanner s = p.getScanner();
+    long[] n = new long[1];
+    p.setScanner(() -> {
+      Symbol sym = s.next_token();
+      n[0]++;
+      return sym;
+    });
+    p.parse();
+    return n[0];
+  }
+
+  /**
+   * Reads an input copied from the test grammars.
+   *
+   * @param name the file name
+   */
+  protected static String resource(String name) throws IOException {
+    try (InputStream in = ParseBenchmark.class.getResourceAsStream("/inputs/" + name)) {
+      if (in == null)
+        throw new IOException("Missing input " + name);
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Repeats the statements of a program, which are all lines but the first.
+   *
+   * @param program the program
+   * @param copies  the number of copies
+   */
+  protected static String repeatBody(String program, int copies) {
+    int nl = program.indexOf('\n') + 1;
+    StringBuilder sb = new StringBuilder(program.substring(0, nl));
+    String body = program.substring(nl);
+    for (int i = 0; i < copies; i++)
+      sb.append(body).append('\n');
+    return sb.toString();
+  }
+}
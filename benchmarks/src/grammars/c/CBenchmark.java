@@ -0,0 +1,43 @@
+package grammars.c;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import grammars.ParseBenchmark;
+import java_cup.runtime.ComplexSymbolFactory;
+import java_cup.runtime.lr_parser;
+
+/**
+ * The C grammar with -xmlactions; its actions track typedef names in the XML
+ * tree, so it has no plain table driven variant. The lexer asks the parser
+ * for typedef names, so scanning and parsing are not separable here either.
+ */
+public class CBenchmark extends ParseBenchmark {
+  /** Functions of the large input. */
+  private static final int FUNCTIONS = 500;
+
+  @Override
+  protected String input(boolean large) throws IOException {
+    String program = resource("complicated.c");
+    if (!large)
+      return program;
+    /* typedefs can't be repeated, so add functions of distinct names */
+    StringBuilder sb = new StringBuilder(program);
+    for (int i = 0; i < FUNCTIONS; i++)
+      sb.append("int f").append(i).append("(int a, int b) {\n")
+          .append("  int c = a * ").append(i).append(" + b;\n")
+          .append("  if (c > ").append(i).append(") { c = c - b; } else { c = c + a; }\n")
+          .append("  while (c < 100) c = c * 2;\n")
+          .append("  return c;\n")
+          .append("}\n");
+    return sb.toString();
+  }
+
+  @Override
+  protected lr_parser parser() {
+    Parser.typenames.clear();
+    Parser.newScope();
+    ComplexSymbolFactory csf = new ComplexSymbolFactory();
+    return new Parser(new Lexer(new StringReader(input), csf), csf);
+  }
+}
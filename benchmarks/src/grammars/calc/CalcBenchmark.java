@@ -0,0 +1,121 @@
+package grammars.calc;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import grammars.ParseBenchmark;
+import java_cup.runtime.Symbol;
+import java_cup.runtime.lr_parser;
+
+/**
+ * The calc grammar, table driven. Its actions evaluate the expressions and
+ * print the results, which go to a null stream while measuring.
+ */
+public class CalcBenchmark extends ParseBenchmark {
+  private PrintStream out;
+
+  /** Expressions per line and lines of the inputs. */
+  private static final int SMALL = 10, LARGE = 10000;
+
+  @Override
+  protected void prepare() {
+    out = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  @Override
+  protected void finish() {
+    System.setOut(out);
+  }
+
+  @Override
+  protected String input(boolean large) {
+    Random random = new Random(42);
+    StringBuilder sb = new StringBuilder();
+    for (int i = large ? LARGE : SMALL; i > 0; i--) {
+      expr(sb, random, 4);
+      sb.append(";\n");
+    }
+    return sb.toString();
+  }
+
+  private static void expr(StringBuilder sb, Random random, int depth) {
+    switch (depth == 0 ? 0 : random.nextInt(5)) {
+    case 0:
+      sb.append(random.nextInt(1000));
+      break;
+    case 1:
+      sb.append("-");
+      expr(sb, random, depth - 1);
+      break;
+    case 2:
+      sb.append("(");
+      expr(sb, random, depth - 1);
+      sb.append(")");
+      break;
+    default:
+      expr(sb, random, depth - 1);
+      sb.append(" +-*".charAt(1 + random.nextInt(3)));
+      expr(sb, random, depth - 1);
+    }
+  }
+
+  @Override
+  protected lr_parser parser() {
+    return new Parser(new StringScanner(input));
+  }
+
+  @Override
+  protected long count() throws Exception {
+    StringScanner s = new StringScanner(input);
+    long n = 0;
+    while (s.next_token().sym != sym.EOF)
+      n++;
+    return n + 1;
+  }
+
+  /** The calc scanner, reading from a String instead of System.in. */
+  private static class StringScanner extends scanner {
+    private final String input;
+    private int pos;
+
+    StringScanner(String input) {
+      this.input = input;
+    }
+
+    @Override
+    public void init() {
+      pos = 0;
+    }
+
+    @Override
+    public Symbol next_token() {
+      while (pos < input.length()) {
+        char c = input.charAt(pos++);
+        switch (c) {
+        case ';':
+          return new Symbol(sym.SEMI);
+        case '+':
+          return new Symbol(sym.PLUS);
+        case '-':
+          return new Symbol(sym.MINUS);
+        case '*':
+          return new Symbol(sym.TIMES);
+        case '(':
+          return new Symbol(sym.LPAREN);
+        case ')':
+          return new Symbol(sym.RPAREN);
+        default:
+          if (c >= '0' && c <= '9') {
+            int value = c - '0';
+            while (pos < input.length() && input.charAt(pos) >= '0' && input.charAt(pos) <= '9')
+              value = value * 10 + input.charAt(pos++) - '0';
+            return new Symbol(sym.NUMBER, Integer.valueOf(value));
+          }
+        }
+      }
+      return new Symbol(sym.EOF);
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package grammars.minijava;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.openjdk.jmh.annotations.Param;
+
+import grammars.ParseBenchmark;
+import java_cup.runtime.ComplexSymbolFactory;
+import java_cup.runtime.lr_parser;
+
+/**
+ * The minijava grammar, table driven and with -xmlactions.
+ */
+public class MiniJavaBenchmark extends ParseBenchmark {
+  @Param({ "tables", "xml" })
+  public String variant;
+
+  @Override
+  protected String input(boolean large) throws IOException {
+    String program = resource("simple.minijava");
+    return large ? repeatBody(program, 1000) : program;
+  }
+
+  @Override
+  protected lr_parser parser() {
+    ComplexSymbolFactory csf = new ComplexSymbolFactory();
+    StringReader in = new StringReader(input);
+    if ("xml".equals(variant))
+      return new grammars.minijava.xml.Parser(new grammars.minijava.xml.Lexer(in, csf), csf);
+    return new grammars.minijava.tables.Parser(new grammars.minijava.tables.Lexer(in, csf), csf);
+  }
+}
@@ -0,0 +1,27 @@
+package grammars.minijava2;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import grammars.ParseBenchmark;
+import java_cup.runtime.ComplexSymbolFactory;
+import java_cup.runtime.lr_parser;
+import miniparser.Lexer;
+import miniparser.Parser;
+
+/**
+ * The minijava2 grammar, table driven, its actions building an AST.
+ */
+public class MiniJava2Benchmark extends ParseBenchmark {
+  @Override
+  protected String input(boolean large) throws IOException {
+    String program = resource("input.minijava");
+    return large ? repeatBody(program, 1000) : program;
+  }
+
+  @Override
+  protected lr_parser parser() {
+    ComplexSymbolFactory csf = new ComplexSymbolFactory();
+    return new Parser(new Lexer(new StringReader(input), csf), csf);
+  }
+}
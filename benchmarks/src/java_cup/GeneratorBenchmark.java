@@ -0,0 +1,226 @@
+package java_cup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Benchmarks of the phases of the parser generator, each measured on its own:
+ * parsing the specification, nullability, first sets, building the state
+ * machine, filling in the parse tables and emitting the parser. The generator
+ * keeps its state in static fields, so every iteration starts afresh: its
+ * setup clears the state and runs the phases before the measured one, which
+ * then runs exactly once.
+ * <p>
+ *
+ * The grammars are the specification of CUP itself, the C grammar of the test
+ * grammars and synthetic grammars of a given number of statements. Since the
+ * setup runs inside the iteration, the allocation -prof gc reports includes
+ * that of the earlier phases; teardown() prints the bytes allocated by the
+ * measured phase alone.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 20)
+public class GeneratorBenchmark {
+  @Param({ "parser", "c", "synthetic-100", "synthetic-1000" })
+  public String grammar;
+
+  @Param({ "parse", "nullability", "first", "machine", "tables", "emit" })
+  public String phase;
+
+  /** The phases, in the order Main runs them. */
+  private static final List<String> PHASES = List.of("parse", "nullability", "first", "machine", "tables", "emit");
+
+  /** The specification. */
+  private byte[] spec;
+
+  /** Where the emitted code goes. */
+  private final PrintWriter sink = new PrintWriter(Writer.nullWriter());
+
+  /** The bytes allocated by the measured phase, and its runs. */
+  private long allocated, runs;
+
+  private static final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    if (grammar.startsWith("synthetic-"))
+      spec = synthetic(Integer.parseInt(grammar.substring("synthetic-".length())));
+    else
+      spec = resource(grammar + ".cup");
+    /* run all phases once, to fail early and to report the size */
+    reset();
+    for (String p : PHASES)
+      run(p);
+    if (ErrorManager.getManager().getErrorCount() != 0)
+      throw new IllegalStateException(grammar + " has errors");
+    System.out.println();
+    System.out.println("# " + grammar + ": " + Terminal.size() + " terminals, " + NonTerminal.size()
+        + " non terminals, " + Production.number() + " productions, " + lalr_state.number() + " states");
+  }
+
+  @Setup(Level.Iteration)
+  public void prepare() throws Exception {
+    reset();
+    for (String p : PHASES.subList(0, PHASES.indexOf(phase)))
+      run(p);
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    if (runs > 0)
+      System.out.println("# " + grammar + " " + phase + ": " + allocated / runs + " bytes allocated per run");
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- Benchmarks --------------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  @Benchmark
+  public void phase() throws Exception {
+    long before = threads.getCurrentThreadAllocatedBytes();
+    run(phase);
+    allocated += threads.getCurrentThreadAllocatedBytes() - before;
+    runs++;
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- Phases ------------------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Clears the static state of the generator, like Main does before each run.
+   */
+  private static void reset() {
+    Terminal.clear();
+    Production.clear();
+    action_production.clear();
+    Emit.clear();
+    NonTerminal.clear();
+    parse_reduce_row.clear();
+    parse_action_row.clear();
+    lalr_state.clear();
+    ErrorManager.clear();
+    Emit.set_lr_values(Main.lr_values);
+    Emit.set_locations(Main.locations);
+    Emit.set_xmlactions(Main.xmlactions);
+    Emit.set_xmlstream(Main.xmlstream);
+    Emit.set_genericlabels(Main.genericlabels);
+    Emit.set_glr(Main.glr);
+    Emit.nowarn = true;
+  }
+
+  /**
+   * Runs a phase the way Main does, keeping its results where Main does.
+   *
+   * @param name the phase
+   */
+  private void run(String name) throws Exception {
+    switch (name) {
+    case "parse":
+      System.setIn(new ByteArrayInputStream(spec));
+      Main.parse_grammar_spec();
+      break;
+    case "nullability":
+      NonTerminal.computeNullability();
+      break;
+    case "first":
+      NonTerminal.computeFirstSet();
+      break;
+    case "machine":
+      Main.start_state = lalr_state.build_machine(Emit.start_production);
+      break;
+    case "tables":
+      Main.action_table = new parse_action_table();
+      Main.reduce_table = new parse_reduce_table();
+      for (var lst : lalr_state.all_states())
+        lst.build_table_entries(Main.action_table, Main.reduce_table);
+      break;
+    case "emit":
+      Emit.symbols(sink, Main.include_non_terms, Main.sym_interface);
+      Emit.parser(sink, Main.action_table, Main.reduce_table, Main.start_state.index(), Emit.start_production,
+          Main.opt_compact_red, Main.suppress_scanner);
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown phase " + name);
+    }
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- Grammars ----------------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Reads a specification copied from the sources.
+   *
+   * @param name the file name
+   */
+  private static byte[] resource(String name) throws IOException {
+    try (InputStream in = GeneratorBenchmark.class.getResourceAsStream("/inputs/" + name)) {
+      if (in == null)
+        throw new IOException("Missing grammar " + name);
+      return in.readAllBytes();
+    }
+  }
+
+  /**
+   * Creates a conflict free grammar of a statement language: n kinds of
+   * statements, each starting with its own keyword, over expressions of n / 10
+   * levels of binary operators. The statements make the grammar wide, the
+   * operator levels make closures and lookahead sets deep.
+   *
+   * @param n the number of statements
+   */
+  static byte[] synthetic(int n) {
+    int levels = Math.max(n / 10, 1);
+    StringBuilder sb = new StringBuilder();
+    sb.append("terminal SEMI, ASSIGN, LPAREN, RPAREN, COMMA, ID, NUM;\n");
+    for (int i = 0; i < n; i++)
+      sb.append("terminal K").append(i).append(";\n");
+    for (int j = 0; j < levels; j++)
+      sb.append("terminal OP").append(j).append(";\n");
+    sb.append("non terminal program, stmts, stmt, args, arglist;\n");
+    for (int j = 0; j <= levels; j++)
+      sb.append("non terminal e").append(j).append(";\n");
+    sb.append("program ::= stmts;\n");
+    sb.append("stmts ::= stmts stmt | ;\n");
+    sb.append("stmt ::=");
+    for (int i = 0; i < n; i++)
+      sb.append(i == 0 ? " " : "\n  | ").append("K").append(i).append(" ID ASSIGN e0 SEMI | K").append(i)
+          .append(" e0 SEMI");
+    sb.append(";\n");
+    sb.append("args ::= arglist | ;\n");
+    sb.append("arglist ::= arglist COMMA e0 | e0;\n");
+    for (int j = 0; j < levels; j++)
+      sb.append("e").append(j).append(" ::= e").append(j).append(" OP").append(j).append(" e").append(j + 1)
+          .append(" | e").append(j + 1).append(";\n");
+    sb.append("e").append(levels).append(" ::= ID | NUM | LPAREN e0 RPAREN | ID LPAREN args RPAREN;\n");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
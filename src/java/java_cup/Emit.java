@@ -1,6 +1,11 @@
 package java_cup;
 
 import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Stack;
 
 /**
@@ -210,6 +215,8 @@ public class Emit {
   protected static boolean _locations;
   protected static boolean _xmlactions;
   protected static boolean _genericlabels;
+  protected static boolean _glr;
+  protected static boolean _xmlstream;
 
   /** whether or not to emit code for left and right values */
   public static boolean lr_values() {
@@ -232,6 +239,24 @@ public class Emit {
     _genericlabels = b;
   }
 
+  /** whether or not to emit the conflict table for the GLR runtime */
+  public static boolean glr() {
+    return _glr;
+  }
+
+  protected static void set_glr(boolean b) {
+    _glr = b;
+  }
+
+  /** whether or not to emit the tables for streaming XML output */
+  public static boolean xmlstream() {
+    return _xmlstream;
+  }
+
+  protected static void set_xmlstream(boolean b) {
+    _xmlstream = b;
+  }
+
   protected static void set_xmlactions(boolean b) {
     _xmlactions = b;
     if (!b)
@@ -243,6 +268,8 @@ public class Emit {
   // Hm Added clear to clear all static fields
   public static void clear() {
     _genericlabels = false;
+    _glr = false;
+    _xmlstream = false;
     _xmlactions = false;
     _locations = false;
     _lr_values = true;
@@ -809,6 +836,326 @@ public class Emit {
     goto_table_time = System.currentTimeMillis() - start_time;
   }
 
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Emit the expected terminal table. It has a row of bits for each state, one
+   * bit for each terminal (in 16 bit words, lowest bit first), telling whether
+   * the terminal is valid in the state: it is shifted, it accepts, or it is
+   * reduced under and the reductions lead, through the states the handle may
+   * have been pushed over, to a state where it is valid. The reductions are
+   * followed here, so the runtime can report the expected tokens without
+   * simulating the parse. The full rows are used, before defaulting out the
+   * most frequent reduce, so terminals only reduced by default, like the error
+   * Symbol, are not included.
+   *
+   * @param out     stream to produce output on.
+   * @param act_tab the internal representation of the action table.
+   */
+  protected static void do_expected_table(PrintWriter out, parse_action_table act_tab) {
+    int states = act_tab.num_states();
+    int terms = parse_action_row.size();
+    int words = (terms + 15) / 16;
+    short[][] expected_table = new short[states][words];
+
+    /* the states with a transition into each state */
+    lalr_state[] state = new lalr_state[states];
+    for (var st : lalr_state.all_states())
+      state[st.index()] = st;
+    BitSet[] into = new BitSet[states];
+    for (int i = 0; i < states; i++)
+      into[i] = new BitSet(states);
+    for (var st : state)
+      for (var tr = st.transitions(); tr != null; tr = tr.next())
+        into[tr.to_state().index()].set(st.index());
+
+    /*
+     * start with the shifts and the accept, and note for each reduce the states
+     * its goto may lead to: the handle is popped by going back along the
+     * transitions, and the goto is taken from each state reached
+     */
+    int[][][] reduce_to = new int[states][][];
+    for (int i = 0; i < states; i++) {
+      var row = act_tab.under_state[i];
+      int at = i;
+      Map<Production, int[]> gotos = new HashMap<>();
+      reduce_to[i] = new int[terms][];
+      for (int j = 0; j < terms; j++) {
+        var act = row.under_term[j];
+        if (j == Terminal.error.index())
+          continue;
+        if (act.kind() == parse_action.SHIFT)
+          expected_table[i][j >> 4] |= (short) (1 << (j & 15));
+        else if (act.kind() == parse_action.REDUCE) {
+          var prod = ((reduce_action) act).reduce_with();
+          if (prod == start_production)
+            expected_table[i][j >> 4] |= (short) (1 << (j & 15));
+          else
+            reduce_to[i][j] = gotos.computeIfAbsent(prod, pr -> goto_targets(state, into, at, pr));
+        }
+      }
+    }
+
+    /* a reduced terminal is valid if it is valid where the goto leads */
+    for (boolean changed = true; changed;) {
+      changed = false;
+      for (int i = 0; i < states; i++)
+        for (int j = 0; j < terms; j++) {
+          if (reduce_to[i][j] == null || (expected_table[i][j >> 4] & (1 << (j & 15))) != 0)
+            continue;
+          for (int to : reduce_to[i][j])
+            if ((expected_table[to][j >> 4] & (1 << (j & 15))) != 0) {
+              expected_table[i][j >> 4] |= (short) (1 << (j & 15));
+              changed = true;
+              break;
+            }
+        }
+    }
+
+    /* emit the table. */
+    out.println();
+    out.println("  /** Expected terminal table. */");
+    out.println("  protected static final short[][] _expected_table = ");
+    out.print("    unpackFromStrings(");
+    do_table_as_string(out, expected_table);
+    out.println(");");
+
+    /* do the public accessor method */
+    out.println();
+    out.println("  /** Access to expected terminal table. */");
+    out.println("  @Override");
+    out.println("  public short[][] expected_table() {return _expected_table;}");
+    out.println();
+
+    /* and the names to report them with */
+    out.println("  /** Names of the terminals, by index. */");
+    out.println("  @Override");
+    out.println("  public String[] terminal_names() {return " + symbol_const_class_name + ".terminalNames;}");
+    out.println();
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Find the states the goto after a reduce may lead to, for each of the states
+   * the handle may have been pushed over.
+   *
+   * @param state the states, by index.
+   * @param into  the states with a transition into each state.
+   * @param at    the index of the state reducing.
+   * @param prod  the production reduced with.
+   * @return the indices of the states the goto leads to.
+   */
+  private static int[] goto_targets(lalr_state[] state, BitSet[] into, int at, Production prod) {
+    BitSet from = new BitSet(state.length);
+    from.set(at);
+    for (int n = 0; n < prod.rhs_length(); n++) {
+      BitSet back = new BitSet(state.length);
+      for (int i = from.nextSetBit(0); i >= 0; i = from.nextSetBit(i + 1))
+        back.or(into[i]);
+      from = back;
+    }
+    var lhs = prod.lhs().symbol();
+    BitSet to = new BitSet(state.length);
+    for (int i = from.nextSetBit(0); i >= 0; i = from.nextSetBit(i + 1))
+      for (var tr = state[i].transitions(); tr != null; tr = tr.next())
+        if (tr.on_symbol() == lhs)
+          to.set(tr.to_state().index());
+    return to.stream().toArray();
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Emit the error table. It is a single row holding, for each state, the
+   * state reached by shifting the error Symbol, or -1 if the state can't shift
+   * it. Together with the expected terminal table this gives the runtime the
+   * recovery points and the terminals it can resynchronize on without looking
+   * through the action table.
+   *
+   * @param out     stream to produce output on.
+   * @param act_tab the internal representation of the action table.
+   */
+  protected static void do_error_table(PrintWriter out, parse_action_table act_tab) {
+    short[][] error_table = new short[1][act_tab.num_states()];
+    for (int i = 0; i < act_tab.num_states(); i++) {
+      var act = act_tab.under_state[i].under_term[Terminal.error.index()];
+      if (act.kind() == parse_action.SHIFT)
+        error_table[0][i] = (short) ((shift_action) act).shift_to().index();
+      else
+        error_table[0][i] = -1;
+    }
+
+    /* emit the table. */
+    out.println();
+    out.println("  /** Error shift table. */");
+    out.println("  protected static final short[][] _error_table = ");
+    out.print("    unpackFromStrings(");
+    do_table_as_string(out, error_table);
+    out.println(");");
+
+    /* do the public accessor method */
+    out.println();
+    out.println("  /** Access to error shift table. */");
+    out.println("  @Override");
+    out.println("  public short[] error_table() {return _error_table[0];}");
+    out.println();
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Collect the XML tags of the parse tree: the names of the nonterminals and
+   * the labels of the terminals, numbered in the order of the productions.
+   *
+   * @return the tags and their numbers.
+   */
+  protected static Map<String, Integer> xml_tag_index() throws internal_error {
+    Map<String, Integer> tag_index = new LinkedHashMap<>();
+    for (int i = 0; i < Production.number(); i++) {
+      Production prod = Production.find(i);
+      String lhsname = prod.lhs().symbol().name().replace('$', '_');
+      tag_index.putIfAbsent(lhsname, tag_index.size());
+      for (int rhsi = 0; rhsi < prod.rhs_length(); rhsi++) {
+        if (!(prod.rhs(rhsi) instanceof SymbolPart))
+          continue;
+        String label = prod.rhs(rhsi).label();
+        SymbolPart sym = (SymbolPart) prod.rhs(rhsi);
+        if (label == null && _genericlabels)
+          label = sym.symbol().name() + rhsi;
+        if (label != null && !sym.symbol().isNonTerm())
+          tag_index.putIfAbsent(label, tag_index.size());
+      }
+    }
+    return tag_index;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Emit the tables for streaming XML output. For each production the table
+   * holds the tag of its nonterminal element, its variant and then one entry
+   * per right hand side symbol: -1 if the symbol is left out, -2 for a
+   * nonterminal child and the tag index of the label for a terminal child.
+   * Children are chosen as by -xmlactions: labeled symbols, or all symbols with
+   * -genericlabels.
+   *
+   * @param out stream to produce output on.
+   */
+  protected static void do_xml_table(PrintWriter out) throws internal_error {
+    Map<String, Integer> tag_index = xml_tag_index();
+    int[] variants = new int[NonTerminal.size()];
+    short[][] xml_table = new short[Production.number()][];
+    for (int i = 0; i < Production.number(); i++) {
+      Production prod = Production.find(i);
+      int lhs = prod.lhs().symbol().index();
+      String lhsname = prod.lhs().symbol().name().replace('$', '_');
+      short[] row = new short[2 + prod.rhs_length()];
+      int n = 0;
+      row[n++] = (short) (int) tag_index.get(lhsname);
+      row[n++] = (short) variants[lhs]++;
+      for (int rhsi = 0; rhsi < prod.rhs_length(); rhsi++) {
+        if (!(prod.rhs(rhsi) instanceof SymbolPart))
+          continue;
+        String label = prod.rhs(rhsi).label();
+        SymbolPart sym = (SymbolPart) prod.rhs(rhsi);
+        if (label == null && _genericlabels)
+          label = sym.symbol().name() + rhsi;
+        if (label == null)
+          row[n++] = -1;
+        else if (sym.symbol().isNonTerm())
+          row[n++] = -2;
+        else
+          row[n++] = (short) (int) tag_index.get(label);
+      }
+      xml_table[i] = Arrays.copyOf(row, n);
+    }
+    if (tag_index.size() > Short.MAX_VALUE)
+      throw new internal_error("Too many XML tags for the XML table");
+
+    /* emit the tables. */
+    out.println();
+    out.println("  /** XML tags of the nonterminals and labeled terminals. */");
+    out.print("  protected static final String[] _xml_tags = {");
+    int col = 0;
+    for (String tag : tag_index.keySet()) {
+      if (col++ % 8 == 0)
+        out.print("\n    ");
+      out.print("\"" + tag + "\",");
+    }
+    out.println("\n  };");
+    out.println();
+    out.println("  /** XML table. */");
+    out.println("  protected static final short[][] _xml_table = ");
+    out.print("    unpackFromStrings(");
+    do_table_as_string(out, xml_table);
+    out.println(");");
+
+    /* do the public accessor methods */
+    out.println();
+    out.println("  /** Access to XML tags. */");
+    out.println("  @Override");
+    out.println("  public String[] xml_tags() {return _xml_tags;}");
+    out.println();
+    out.println("  /** Access to XML table. */");
+    out.println("  @Override");
+    out.println("  public short[][] xml_table() {return _xml_table;}");
+    out.println();
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Emit the conflict table for the GLR runtime. Its rows hold the actions that
+   * lost a conflict not resolved by precedence, as pairs of terminal index and
+   * action, encoded just like the entries of the action table. Rows of states
+   * without such conflicts are empty.
+   *
+   * @param out     stream to produce output on.
+   * @param act_tab the internal representation of the action table.
+   */
+  protected static void do_conflict_table(PrintWriter out, parse_action_table act_tab) throws internal_error {
+    short[][] conflict_table = new short[act_tab.num_states()][];
+    for (int i = 0; i < act_tab.num_states(); i++) {
+      var alternatives = act_tab.under_state[i].alternatives;
+      int nentries = 0;
+      short[] temp_table = new short[0];
+      if (alternatives != null) {
+        for (int j = 0; j < alternatives.length; j++) {
+          if (alternatives[j] == null)
+            continue;
+          for (var act : alternatives[j]) {
+            if (nentries + 2 > temp_table.length)
+              temp_table = Arrays.copyOf(temp_table, 2 * temp_table.length + 2);
+            temp_table[nentries++] = (short) j;
+            if (act.kind() == parse_action.SHIFT)
+              temp_table[nentries++] = (short) (((shift_action) act).shift_to().index() + 1);
+            else if (act.kind() == parse_action.REDUCE)
+              temp_table[nentries++] = (short) -(((reduce_action) act).reduce_with().index() + 1);
+            else
+              throw new internal_error("Unrecognized action code " + act.kind() + " found in conflict table");
+          }
+        }
+      }
+      conflict_table[i] = Arrays.copyOf(temp_table, nentries);
+    }
+
+    /* emit the table. */
+    out.println();
+    out.println("  /** Conflict table for the GLR runtime. */");
+    out.println("  protected static final short[][] _conflict_table = ");
+    out.print("    unpackFromStrings(");
+    do_table_as_string(out, conflict_table);
+    out.println(");");
+
+    /* do the public accessor method */
+    out.println();
+    out.println("  /** Access to conflict table. */");
+    out.println("  @Override");
+    out.println("  public short[][] conflict_table() {return _conflict_table;}");
+    out.println();
+  }
+
   // print a string array encoding the given short[][] array.
   protected static void do_table_as_string(PrintWriter out, short[][] sa) {
     out.println("new String[] {");
@@ -939,6 +1286,12 @@ public class Emit {
     emit_production_table(out);
     do_action_table(out, action_table, compact_reduces);
     do_reduce_table(out, reduce_table);
+    do_expected_table(out, action_table);
+    do_error_table(out, action_table);
+    if (glr())
+      do_conflict_table(out, action_table);
+    if (xmlstream())
+      do_xml_table(out);
 
     /* instance of the action encapsulation class */
     out.println("  /** Instance of action encapsulation class. */");
@@ -1042,6 +1395,20 @@ public class Emit {
 
     long start_time = System.currentTimeMillis();
 
+    /* interned ids of the tags, so that visitors dispatch on ints */
+    Map<String, Integer> tag_index = xml_tag_index();
+    out.println();
+    out.println("  /** Interned ids of the XML tags. */");
+    out.print("  private static final int[] " + pre("tag_ids") + " = XMLElement.tagIds(");
+    int col = 0;
+    for (String tag : tag_index.keySet()) {
+      out.print(col == 0 ? "" : ",");
+      if (col++ % 8 == 0)
+        out.print("\n    ");
+      out.print("\"" + tag + "\"");
+    }
+    out.println(");");
+
     /* class header */
     out.println();
     out.println("/** Cup generated class to encapsulate user supplied action code.*/");
@@ -1110,8 +1477,8 @@ public class Emit {
           if (sym.symbol().isNonTerm())
             nested += ",(XMLElement)" + label;
           else
-            nested += ",new XMLElement.Terminal(" + label + "xleft,\"" + label + "\"," + label + "," + label
-                + "xright)";
+            nested += ",new XMLElement.Terminal(" + label + "xleft," + pre("tag_ids") + "[" + tag_index.get(label)
+                + "]," + label + "," + label + "xright)";
         }
 
         if (prod.action() != null && prod.action().code() != null && !prod.action().equals(""))
@@ -1125,7 +1492,8 @@ public class Emit {
 
         String lhsname = prod.lhs().symbol().name().replace('$', '_');
         out.println(
-            "                RESULT = new XMLElement.NonTerminal(\"" + lhsname + "\"," + variant + nested + ");");
+            "                RESULT = " + pre("parser") + ".share(new XMLElement.NonTerminal(" + pre("tag_ids") + "["
+                + tag_index.get(lhsname) + "]," + variant + nested + "));");
 
         /*
          * Create the code that assigns the left and right values of the new Symbol that
@@ -1258,10 +1626,10 @@ public class Emit {
       else
         ret = "\t\tLocation " + labelname + "xleft = ((java_cup.runtime.ComplexSymbolFactory.ComplexSymbol)"
               + pre("stack") +
-              ((offset == 0) ? ".peek()" : (".elementAt(" + pre("top") + "-" + offset + ")")) + ").xleft;\n"
+              ((offset == 0) ? ".peek()" : (".elementAt(" + pre("top") + "-" + offset + ")")) + ").getLeft();\n"
               + "\t\tLocation " + labelname + "xright = ((java_cup.runtime.ComplexSymbolFactory.ComplexSymbol)"
               + pre("stack") +
-              ((offset == 0) ? ".peek()" : (".elementAt(" + pre("top") + "-" + offset + ")")) + ").xright;\n";
+              ((offset == 0) ? ".peek()" : (".elementAt(" + pre("top") + "-" + offset + ")")) + ").getRight();\n";
     } else
       ret = "";
 
@@ -35,6 +35,9 @@ import java_cup.runtime.*;
  * <dd>number of conflicts expected/allowed [default 0]
  * <dt>-compact_red
  * <dd>compact tables by defaulting to most frequent reduce
+ * <dt>-glr
+ * <dd>keep unresolved conflicts in a table for the GLR runtime instead of
+ * aborting
  * <dt>-nowarn
  * <dd>don't warn about useless productions, etc.
  * <dt>-nosummary
@@ -57,6 +60,9 @@ import java_cup.runtime.*;
  * <dd>don't generate the positions code
  * <dt>-locations
  * <dd>generate handles xleft/xright for symbol positions in actions
+ * <dt>-xmlstream
+ * <dd>emit tables for streaming the parse tree as XML with
+ * java_cup.runtime.XMLStreamListener
  * <dt>-noscanner
  * <dd>don't refer to java_cup.runtime.Scanner in the parser (for compatibility
  * with old runtimes)
@@ -111,12 +117,18 @@ public class Main {
   protected static boolean no_summary = false;
   /** User option -- number of conflicts to expect */
   protected static int expect_conflicts = 0;
+  /**
+   * User option -- should unresolved conflicts be emitted in a conflict table
+   * for the GLR runtime (and not abort parser generation)?
+   */
+  protected static boolean glr = false;
 
   /* frankf added this 6/18/96 */
   /** User option -- should generator generate code for left/right values? */
   protected static boolean lr_values = true;
   protected static boolean locations = false;
   protected static boolean xmlactions = false;
+  protected static boolean xmlstream = false;
   protected static boolean genericlabels = false;
 
   /** User option -- should symbols be put in a class or an interface? [CSA] */
@@ -194,7 +206,9 @@ public class Main {
     Emit.set_lr_values(lr_values);
     Emit.set_locations(locations);
     Emit.set_xmlactions(xmlactions);
+    Emit.set_xmlstream(xmlstream);
     Emit.set_genericlabels(genericlabels);
+    Emit.set_glr(glr);
     /* open output set_xmlactionsfiles */
     if (print_progress)
       System.err.println("Opening files...");
@@ -291,11 +305,13 @@ public class Main {
         + "    -nonterms      put non terminals in symbol constant class\n"
         + "    -expect #      number of conflicts expected/allowed [default 0]\n"
         + "    -compact_red   compact tables by defaulting to most frequent reduce\n"
+        + "    -glr           emit unresolved conflicts for the GLR runtime\n"
         + "    -nowarn        don't warn about useless productions, etc.\n"
         + "    -nosummary     don't print the usual summary of parse states, etc.\n"
         + "    -nopositions   don't propagate the left and right token position values\n"
         + "    -locations     generate handles xleft/xright for symbol positions in actions\n"
         + "    -xmlactions    make the generated parser yield its parse tree as XML\n"
+        + "    -xmlstream     emit tables for streaming the parse tree as XML\n"
         + "    -genericlabels automatically generate labels to all symbols in XML mode\n"
         + "    -noscanner     don't refer to java_cup.runtime.Scanner\n"
         + "    -progress      print messages to indicate progress of the system\n"
@@ -365,6 +381,8 @@ public class Main {
         }
       } else if (argv[i].equals("-compact_red"))
         opt_compact_red = true;
+      else if (argv[i].equals("-glr"))
+        glr = true;
       else if (argv[i].equals("-nosummary"))
         no_summary = true;
       else if (argv[i].equals("-nowarn"))
@@ -392,6 +410,8 @@ public class Main {
         locations = true;
       else if (argv[i].equals("-xmlactions"))
         xmlactions = true;
+      else if (argv[i].equals("-xmlstream"))
+        xmlstream = true;
       else if (argv[i].equals("-genericlabels"))
         genericlabels = true;
       /* CSA 12/21/97 */
@@ -640,8 +660,11 @@ public class Main {
 
     reduce_check_end = System.currentTimeMillis();
 
-    /* if we have more conflicts than we expected issue a message and die */
-    if (Emit.num_conflicts > expect_conflicts) {
+    /*
+     * if we have more conflicts than we expected issue a message and die, unless
+     * they are left to the GLR runtime
+     */
+    if (Emit.num_conflicts > expect_conflicts && !glr) {
       ErrorManager.getManager()
           .emit_error("*** More conflicts encountered than expected " + "-- parser generation aborted");
       // indicate the problem.
@@ -43,6 +43,7 @@ public class CUPTask extends Task {
     private boolean nonterms = false;
     private String expect = null;
     private boolean compact_red = false;
+    private boolean glr = false;
     private boolean nowarn = false;
     private boolean nosummary = false;
     private boolean progress = false;
@@ -55,6 +56,7 @@ public class CUPTask extends Task {
     private boolean debugsymbols = false;
     private boolean nopositions = false;
     private boolean xmlactions = false;
+    private boolean xmlstream = false;
     private boolean genericlabels = false;
     private boolean locations = true;
     private boolean noscanner = false;
@@ -96,6 +98,9 @@ public class CUPTask extends Task {
         if (compact_red) {
             sc.add("-compact_red");
         }
+        if (glr) {
+            sc.add("-glr");
+        }
         if (nowarn) {
             sc.add("-nowarn");
         }
@@ -138,6 +143,9 @@ public class CUPTask extends Task {
         if (xmlactions) {
             sc.add("-xmlactions");
         }
+        if (xmlstream) {
+            sc.add("-xmlstream");
+        }
         if (noscanner) {
             sc.add("-noscanner");
         }
@@ -457,6 +465,24 @@ public class CUPTask extends Task {
         this.compact_red = argCompact_red;
     }
 
+    /**
+     * Gets the value of glr
+     *
+     * @return the value of glr
+     */
+    public boolean isGlr() {
+        return this.glr;
+    }
+
+    /**
+     * Sets the value of glr
+     *
+     * @param argGlr Value to assign to this.glr
+     */
+    public void setGlr(boolean argGlr) {
+        this.glr = argGlr;
+    }
+
     /**
      * Gets the value of nowarn
      *
@@ -699,6 +725,14 @@ public class CUPTask extends Task {
         this.xmlactions = xmlactions;
     }
 
+    public boolean isXmlstream() {
+        return xmlstream;
+    }
+
+    public void setXmlstream(boolean xmlstream) {
+        this.xmlstream = xmlstream;
+    }
+
     public boolean isGenericlabels() {
         return genericlabels;
     }
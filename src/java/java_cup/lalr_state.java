@@ -433,7 +433,7 @@ public class lalr_state {
    * lowest numbered production (hence the one that appeared first in the
    * specification) in reduce/reduce conflicts. All conflicts are reported and if
    * more conflicts are detected than were declared by the user, code generation
-   * is aborted.
+   * is aborted. The actions that lost are kept in the row for the GLR runtime.
    *
    * @param act_table    the action table to put entries in.
    * @param reduce_table the reduce-goto table to put entries in.
@@ -471,6 +471,9 @@ public class lalr_state {
               if (itm.the_production().index() < ((reduce_action) other_act).reduce_with().index()) {
                 /* replace the action */
                 our_act_row.under_term[t] = act;
+                our_act_row.add_alternative(t, other_act);
+              } else {
+                our_act_row.add_alternative(t, act);
               }
             } else {
               /* Check precedences,see if problem is correctable */
@@ -503,6 +506,7 @@ public class lalr_state {
 
           /* shift always wins */
           if (!fix_with_precedence(p, sym.index(), our_act_row, act)) {
+            our_act_row.add_alternative(sym.index(), our_act_row.under_term[sym.index()]);
             our_act_row.under_term[sym.index()] = act;
             conflict_set.add(Terminal.findByIndex(sym.index()));
           }
@@ -61,9 +61,40 @@ public class parse_action_row {
    */
   public int default_reduce;
 
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Actions that lost a conflict not resolved by precedence, by terminal.
+   *  Allocated on the first such conflict; an entry is null for terminals 
+   *  without conflict.  These are only used by the GLR runtime.
+   */
+  public parse_action alternatives[][];
+
   /*-----------------------------------------------------------*/
   /*--- General Methods ---------------------------------------*/
   /*-----------------------------------------------------------*/
+
+  /** Record an action that lost a conflict under a terminal.
+   * @param term the index of the terminal.
+   * @param act  the action that was not put in the table.
+   */
+  public void add_alternative(int term, parse_action act)
+    {
+      if (alternatives == null)
+	alternatives = new parse_action[size()][];
+      parse_action[] old = alternatives[term];
+      if (old == null)
+	{
+	  alternatives[term] = new parse_action[] {act};
+	}
+      else
+	{
+	  alternatives[term] = new parse_action[old.length + 1];
+	  System.arraycopy(old, 0, alternatives[term], 0, old.length);
+	  alternatives[term][old.length] = act;
+	}
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 	
   /** Compute the default (reduce) action for this row and store it in 
    *  default_reduce.  In the case of non-zero default we will have the 
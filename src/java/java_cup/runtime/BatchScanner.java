@@ -0,0 +1,40 @@
+package java_cup.runtime;
+
+/**
+ * A scanner that can hand out many Symbols per call. The default
+ * implementation of <code>lr_parser.scan()</code> recognizes it and reads the
+ * input in batches, so that the parser calls the scanner once per batch
+ * instead of once per Symbol, while the scanner's own loop stays monomorphic.
+ * <p>
+ *
+ * A scanner reads ahead up to a batch of Symbols this way. Scanners that wait
+ * for interactive input, or whose state is changed by parser actions, should
+ * not implement this interface.
+ *
+ * @see java_cup.runtime.lr_parser#scan()
+ */
+public interface BatchScanner extends Scanner {
+  /**
+   * Store the next Symbols in the given array, stopping after the EOF Symbol.
+   * The default implementation calls <code>next_token()</code> in a loop.
+   *
+   * @param buf the array to store the Symbols in.
+   * @param off the index of the first Symbol in the array.
+   * @param len the maximum number of Symbols to store, at least 1.
+   * @return the number of Symbols stored, which is at least 1 unless the end of
+   *         the input was reached (like <code>null</code> from
+   *         <code>next_token()</code>).
+   */
+  public default int next_tokens(Symbol[] buf, int off, int len) throws java.lang.Exception {
+    int n = 0;
+    while (n < len) {
+      Symbol s = next_token();
+      if (s == null)
+        break;
+      buf[off + n++] = s;
+      if (s.sym == 0)
+        break;
+    }
+    return n;
+  }
+}
@@ -1,5 +1,7 @@
 package java_cup.runtime;
 
+import java.util.Arrays;
+
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 
@@ -15,6 +17,141 @@ import javax.xml.stream.XMLStreamWriter;
  * interface for creating new symbols
  ***************************************************/
 public class ComplexSymbolFactory implements SymbolFactory {
+    /**
+     * Line index of the input in packed location mode, null otherwise.
+     */
+    protected final LineIndex lines;
+
+    /**
+     * Creates a factory whose Symbols carry Location objects.
+     */
+    public ComplexSymbolFactory() {
+        this(null);
+    }
+
+    /**
+     * Creates a factory in packed location mode: Symbols made from other Symbols
+     * are PackedSymbols, which only carry start and end offsets. Their Locations
+     * are computed from the given line index when asked for.
+     *
+     * @param lines line index of the input, or null for Location objects
+     */
+    public ComplexSymbolFactory(LineIndex lines) {
+        this.lines = lines;
+    }
+
+    /**
+     * LineIndex records where the lines of a compilation unit start, so that
+     * line and column of an offset can be computed when needed. Lines and
+     * columns are counted from 1, as by the scanners in testgrammars.
+     */
+    public static class LineIndex {
+        private final String unit;
+        private long[] starts = new long[64];
+        private int count = 1;
+
+        /**
+         * Creates an index for a unit whose lines are added while scanning
+         * 
+         * @param unit compilation unit, e.g. file name
+         */
+        public LineIndex(String unit) {
+            this.unit = unit;
+        }
+
+        /**
+         * Creates the index of a text held in memory; lines end with \n, \r\n or
+         * \r
+         * 
+         * @param unit compilation unit, e.g. file name
+         * @param text the text
+         */
+        public static LineIndex of(String unit, CharSequence text) {
+            LineIndex index = new LineIndex(unit);
+            for (int i = 0, n = text.length(); i < n; i++) {
+                char c = text.charAt(i);
+                if (c == '\r' && i + 1 < n && text.charAt(i + 1) == '\n')
+                    i++;
+                if (c == '\n' || c == '\r')
+                    index.addLine(i + 1);
+            }
+            return index;
+        }
+
+        /**
+         * Records the start of the next line, e.g. from the scanner rule matching
+         * line ends. Offsets must increase.
+         * 
+         * @param offset offset of the first character of the line
+         */
+        public void addLine(long offset) {
+            if (offset <= starts[count - 1])
+                throw new IllegalArgumentException("Line start " + offset + " not after " + starts[count - 1]);
+            if (count == starts.length)
+                starts = Arrays.copyOf(starts, count * 2);
+            starts[count++] = offset;
+        }
+
+        /**
+         * getUnit
+         * 
+         * @returns compilation unit
+         */
+        public String getUnit() {
+            return unit;
+        }
+
+        /**
+         * line
+         * 
+         * @returns line of the given offset, or -1 if it is negative
+         */
+        public int line(long offset) {
+            if (offset < 0)
+                return -1;
+            int i = Arrays.binarySearch(starts, 0, count, offset);
+            return (i >= 0 ? i : -i - 2) + 1;
+        }
+
+        /**
+         * column
+         * 
+         * @returns column of the given offset, or -1 if it is negative
+         */
+        public int column(long offset) {
+            if (offset < 0)
+                return -1;
+            return (int) (offset - starts[line(offset) - 1]) + 1;
+        }
+
+        /**
+         * Creates the Location of an offset. Offsets beyond the int range get
+         * offset -1 in the Location, line and column are still right.
+         * 
+         * @param offset offset from the start of the unit
+         * @return a new Location
+         */
+        public Location location(long offset) {
+            return new Location(unit, line(offset), column(offset),
+                    offset <= Integer.MAX_VALUE ? (int) offset : -1);
+        }
+
+        /**
+         * Creates the Location of the end of a span. Like in the scanners in
+         * testgrammars, line and column are those of the last character, while
+         * the offset is the one after it.
+         * 
+         * @param start offset of the first character of the span
+         * @param end   offset after the last character of the span
+         * @return a new Location
+         */
+        public Location endLocation(long start, long end) {
+            long last = end > start ? end - 1 : end;
+            return new Location(unit, line(last), column(last),
+                    end <= Integer.MAX_VALUE ? (int) end : -1);
+        }
+    }
+
     public static class Location {
         private String unit = "unknown";
         private int line, column, offset = -1;
@@ -252,7 +389,69 @@ public class ComplexSymbolFactory implements SymbolFactory {
         }
     }
 
+    /**
+     * PackedSymbol is a ComplexSymbol carrying start and end offsets instead of
+     * Location objects; getLeft() and getRight() compute new Locations from the
+     * line index on every call. xleft and xright stay null.
+     */
+    public static class PackedSymbol extends ComplexSymbol {
+        /** Offsets of the first character and after the last character. */
+        public final long start, end;
+        private final LineIndex lines;
+
+        public PackedSymbol(String name, int id, long start, long end, Object value, LineIndex lines) {
+            super(name, id, value);
+            this.start = start;
+            this.end = end;
+            this.lines = lines;
+            this.left = start <= Integer.MAX_VALUE ? (int) start : -1;
+            this.right = end <= Integer.MAX_VALUE ? (int) end : -1;
+        }
+
+        @Override
+        public Location getLeft() {
+            return lines == null ? null : lines.location(start);
+        }
+
+        @Override
+        public Location getRight() {
+            return lines == null ? null : lines.endLocation(start, end);
+        }
+
+        @Override
+        public String toString() {
+            if (lines == null)
+                return "Symbol: " + name;
+            return "Symbol: " + name + " (" + getLeft() + " - " + getRight() + ")";
+        }
+    }
+
+    private static long start(Symbol s) {
+        return s instanceof PackedSymbol ? ((PackedSymbol) s).start : s.left;
+    }
+
+    private static long end(Symbol s) {
+        return s instanceof PackedSymbol ? ((PackedSymbol) s).end : s.right;
+    }
+
     // Factory methods
+    /**
+     * newSymbol creates a packed symbol with start and end offsets; this is used
+     * by scanners for terminals with values in packed location mode!
+     */
+    public Symbol newSymbol(String name, int id, long start, long end, Object value) {
+        return new PackedSymbol(name, id, start, end, value, lines);
+    }
+
+    /**
+     * newSymbol creates a packed symbol with start and end offsets; this is used
+     * by scanners for terminals without values in packed location mode!
+     */
+    public Symbol newSymbol(String name, int id, long start, long end) {
+        return new PackedSymbol(name, id, start, end, null, lines);
+    }
+
+
     /**
      * newSymbol creates a complex symbol with Location objects for left and right
      * boundaries; this is used for terminals with values!
@@ -270,14 +469,20 @@ public class ComplexSymbolFactory implements SymbolFactory {
     }
     @Override
     public Symbol newSymbol(String name, int id, Symbol left, Object value) {
+        if (lines != null)
+            return new PackedSymbol(name, id, end(left), end(left), value, lines);
         return new ComplexSymbol(name, id, left, value);
     }
     @Override
     public Symbol newSymbol(String name, int id, Symbol left, Symbol right, Object value) {
+        if (lines != null)
+            return new PackedSymbol(name, id, start(left), end(right), value, lines);
         return new ComplexSymbol(name, id, left, right, value);
     }
     @Override
     public Symbol newSymbol(String name, int id, Symbol left, Symbol right) {
+        if (lines != null)
+            return new PackedSymbol(name, id, start(left), end(right), null, lines);
         return new ComplexSymbol(name, id, left, right);
     }
     @Override
@@ -0,0 +1,517 @@
+package java_cup.runtime;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class implements a generalized LR (GLR) parse driver for generated
+ * parsers. It uses the tables of the given parser together with its conflict
+ * table (generated with the -glr option), and follows all actions of a
+ * conflict instead of just the one that won. The alternative parses share a
+ * graph-structured stack, and their results are collected in a shared packed
+ * parse forest: every node of the forest stands for one symbol over one span of
+ * tokens, and holds one packed alternative (production and children) for every
+ * way that span was derived.
+ * <p>
+ *
+ * As long as there is a single stack top and no conflict in its state, the
+ * parser takes the plain LR steps directly, without the bookkeeping of the
+ * general algorithm, so unambiguous parts of the input run at about the speed
+ * of a deterministic parse. Only where the tables have conflicts the stack
+ * forks, and the forks merge again as soon as they reach the same state.
+ * <p>
+ *
+ * Since alternative parses may turn out to be dead ends, no user actions are
+ * executed: the result is the forest, which the caller can walk, disambiguate
+ * and evaluate. No error recovery is done; a syntax error is reported through
+ * <code>syntax_error()</code> and <code>unrecovered_syntax_error()</code> of
+ * the parser, at the first token no stack can continue with.
+ *
+ * @see java_cup.runtime.lr_parser#conflict_table()
+ */
+public class GLRParser {
+
+  /*-----------------------------------------------------------*/
+  /*--- Constructor(s) ----------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Create a GLR driver for the given parser, which provides the tables, the
+   * scanner and error reporting.
+   *
+   * @param parser a generated parser, preferably generated with -glr.
+   */
+  public GLRParser(lr_parser parser) {
+    this.parser = parser;
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- (Access to) Instance Variables ------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** The parser providing the tables. */
+  protected final lr_parser parser;
+
+  /** The conflict table, or empty rows if the parser has none. */
+  private short[][] conflict_tab;
+
+  /** The tokens read by the last parse, including EOF. */
+  private final List<Symbol> tokens = new ArrayList<>();
+
+  /** The lookahead Symbol index of the current step. */
+  private int la;
+
+  /** The position of the current step, i.e. the number of tokens shifted. */
+  private int pos;
+
+  /** The result of the parse, once the start production was reduced. */
+  private ForestNode accepted;
+
+  /*
+   * data of the current position: the stack tops and symbol nodes created at it,
+   * by the deterministic path and the general algorithm alike
+   */
+  private final ArrayList<Node> active = new ArrayList<>();
+  private final ArrayDeque<Node> for_actor = new ArrayDeque<>();
+  private final ArrayList<Node> shift_from = new ArrayList<>();
+  private int[] shift_to = new int[16];
+  private final HashMap<Long, ForestNode> symbol_nodes = new HashMap<>();
+
+  /** The tokens read by the last parse, including EOF. */
+  public List<Symbol> getTokens() {
+    return tokens;
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- General Methods ---------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Parse the input of the parser's scanner.
+   *
+   * @return the forest node of the start symbol of the grammar (spanning all
+   *         tokens but EOF), or null after a syntax error if
+   *         <code>unrecovered_syntax_error()</code> returned normally.
+   */
+  public ForestNode parse() throws java.lang.Exception {
+    if (parser.action_tab == null) {
+      parser.production_tab = parser.production_table();
+      parser.action_tab = parser.action_table();
+      parser.reduce_tab = parser.reduce_table();
+    }
+    conflict_tab = parser.conflict_table();
+    if (conflict_tab == null)
+      conflict_tab = new short[parser.action_tab.length][0];
+    parser.user_init();
+
+    tokens.clear();
+    accepted = null;
+    pos = 0;
+    ArrayList<Node> frontier = new ArrayList<>();
+    frontier.add(new Node(parser.start_state(), 0));
+    begin(frontier);
+    Symbol tok = parser.scan();
+    boolean at_eof = false;
+
+    for (;;) {
+      la = tok.sym;
+
+      /* the deterministic path: one stack without conflicts */
+      if (frontier.size() == 1) {
+        Node n = frontier.get(0);
+        while (conflict_tab[n.state].length == 0 || !has_conflict(n.state)) {
+          int act = parser.get_action(n.state, la);
+          if (act >= 0)
+            break;
+          Node r = linear_reduce(n, (-act) - 1);
+          if (accepted != null)
+            return accepted;
+          if (r == null)
+            break;
+          n = r;
+        }
+        frontier.set(0, n);
+        if (conflict_tab[n.state].length == 0 || !has_conflict(n.state)) {
+          int act = parser.get_action(n.state, la);
+          if (act > 0) {
+            Node m = new Node(act - 1, pos + 1);
+            m.edges = new Edge(n, shift_node(tok), null);
+            frontier.set(0, m);
+            if (at_eof)
+              break;
+            at_eof = tok.sym == parser.EOF_sym();
+            if (!at_eof)
+              tok = parser.scan();
+            pos++;
+            begin(frontier);
+            continue;
+          }
+        }
+      }
+
+      /* the general path */
+      ArrayList<Node> next = step(tok);
+      if (accepted != null)
+        return accepted;
+      if (next.isEmpty() || at_eof)
+        break;
+      frontier = next;
+      at_eof = tok.sym == parser.EOF_sym();
+      if (!at_eof)
+        tok = parser.scan();
+      pos++;
+      begin(frontier);
+    }
+
+    /* no stack could continue: report with the first one as the parser's stack */
+    parser.stack.removeAllElements();
+    for (Node n = frontier.get(0); n != null; n = n.edges == null ? null : n.edges.to)
+      parser.stack.add(0, new Symbol(n.edges == null ? -1 : n.edges.label.getSym(), n.state));
+    parser.tos = parser.stack.size() - 1;
+    parser.syntax_error(tok);
+    parser.unrecovered_syntax_error(tok);
+    parser.done_parsing();
+    return null;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /** Start a new position with the given stack tops. */
+  private void begin(ArrayList<Node> frontier) {
+    active.clear();
+    active.addAll(frontier);
+    symbol_nodes.clear();
+  }
+
+  /** Does the state have a conflict under the current lookahead? */
+  private boolean has_conflict(int state) {
+    short[] row = conflict_tab[state];
+    for (int i = 0; i < row.length; i += 2)
+      if (row[i] == la)
+        return true;
+    return false;
+  }
+
+  /** Make the forest node of a token and record the token. */
+  private ForestNode shift_node(Symbol tok) {
+    if (tokens.size() == pos) {
+      tok.used_by_parser = true;
+      tokens.add(tok);
+    }
+    return new ForestNode(tok.sym, true, pos, pos + 1, tok);
+  }
+
+  /**
+   * Reduce with a production on the single stack, if the handle is not shared
+   * by several stacks. The new symbol and stack nodes are registered for the
+   * position, so the general path shares and merges them.
+   *
+   * @return the new top of the stack, or null if the general path has to do
+   *         the reduction.
+   */
+  private Node linear_reduce(Node n, int prod) {
+    int size = parser.production_tab[prod][1];
+    ForestNode[] kids = new ForestNode[size];
+    Node q = n;
+    for (int k = size - 1; k >= 0; k--) {
+      if (q.edges == null || q.edges.next != null)
+        return null;
+      kids[k] = q.edges.label;
+      q = q.edges.to;
+    }
+    if (prod == parser.start_production()) {
+      accepted = kids[0];
+      return null;
+    }
+    int lhs = parser.production_tab[prod][0];
+    int st = parser.get_reduce(q.state, lhs);
+    if (find(active, st) != null)
+      return null;
+    Long key = ((long) lhs << 32) | q.level;
+    ForestNode sn = symbol_nodes.get(key);
+    if (sn == null) {
+      sn = new ForestNode(lhs, false, q.level, pos, null);
+      symbol_nodes.put(key, sn);
+    }
+    sn.add(prod, kids);
+    n.acted = true;
+    Node r = new Node(st, pos);
+    r.edges = new Edge(q, sn, null);
+    active.add(r);
+    return r;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Perform all reductions under the current lookahead on all stacks, then
+   * shift the current token on all stacks that can. The stacks are the tops of
+   * the position the deterministic path has not acted on yet.
+   *
+   * @return the new stack tops, empty if no stack could shift.
+   */
+  private ArrayList<Node> step(Symbol tok) {
+    for (int i = 0; i < active.size(); i++)
+      if (!active.get(i).acted)
+        for_actor.add(active.get(i));
+    shift_from.clear();
+
+    while (!for_actor.isEmpty()) {
+      Node n = for_actor.poll();
+      n.acted = true;
+      int act = parser.get_action(n.state, la);
+      actor(n, act);
+      short[] row = conflict_tab[n.state];
+      for (int i = 0; i < row.length; i += 2)
+        if (row[i] == la)
+          actor(n, row[i + 1]);
+    }
+
+    /* shift the token on all stacks that want it */
+    ArrayList<Node> next = new ArrayList<>();
+    if (shift_from.isEmpty())
+      return next;
+    ForestNode tn = shift_node(tok);
+    for (int i = 0; i < shift_from.size(); i++) {
+      Node m = find(next, shift_to[i]);
+      if (m == null) {
+        m = new Node(shift_to[i], pos + 1);
+        next.add(m);
+      }
+      m.edges = new Edge(shift_from.get(i), tn, m.edges);
+    }
+    return next;
+  }
+
+  /** Perform one action on a stack. */
+  private void actor(Node n, int act) {
+    if (act > 0) {
+      if (shift_from.size() == shift_to.length)
+        shift_to = Arrays.copyOf(shift_to, shift_to.length * 2);
+      shift_to[shift_from.size()] = act - 1;
+      shift_from.add(n);
+    } else if (act < 0) {
+      int prod = (-act) - 1;
+      walk(n, parser.production_tab[prod][1], new ForestNode[parser.production_tab[prod][1]], prod, null, false);
+    }
+  }
+
+  /**
+   * Follow all paths of the handle's length down the stack, and reduce along
+   * each of them. If a link is given, only paths through it are followed.
+   */
+  private void walk(Node n, int remaining, ForestNode[] kids, int prod, Edge via, boolean used) {
+    if (remaining == 0) {
+      if (via == null || used)
+        reducer(n, prod, kids.clone());
+      return;
+    }
+    for (Edge e = n.edges; e != null; e = e.next) {
+      kids[remaining - 1] = e.label;
+      walk(e.to, remaining - 1, kids, prod, via, used || e == via);
+    }
+  }
+
+  /** Push the left hand side of a production reduced along one path. */
+  private void reducer(Node q, int prod, ForestNode[] kids) {
+    if (prod == parser.start_production()) {
+      accepted = kids[0];
+      return;
+    }
+    int lhs = parser.production_tab[prod][0];
+    int st = parser.get_reduce(q.state, lhs);
+
+    /* share the forest node of the symbol over the span */
+    Long key = ((long) lhs << 32) | q.level;
+    ForestNode sn = symbol_nodes.get(key);
+    if (sn == null) {
+      sn = new ForestNode(lhs, false, q.level, pos, null);
+      symbol_nodes.put(key, sn);
+    }
+    sn.add(prod, kids);
+
+    Node n = find(active, st);
+    if (n == null) {
+      n = new Node(st, pos);
+      n.edges = new Edge(q, sn, null);
+      active.add(n);
+      for_actor.add(n);
+      return;
+    }
+    for (Edge e = n.edges; e != null; e = e.next)
+      if (e.to == q)
+        return;
+
+    /* a new link to a stack already done: redo its reductions through it */
+    Edge link = n.edges = new Edge(q, sn, n.edges);
+    for (int i = 0; i < active.size(); i++) {
+      Node m = active.get(i);
+      if (!m.acted)
+        continue;
+      int act = parser.get_action(m.state, la);
+      if (act < 0)
+        walk(m, parser.production_tab[(-act) - 1][1], new ForestNode[parser.production_tab[(-act) - 1][1]], (-act) - 1,
+             link, false);
+      short[] row = conflict_tab[m.state];
+      for (int j = 0; j < row.length; j += 2)
+        if (row[j] == la && row[j + 1] < 0)
+          walk(m, parser.production_tab[(-row[j + 1]) - 1][1],
+               new ForestNode[parser.production_tab[(-row[j + 1]) - 1][1]], (-row[j + 1]) - 1, link, false);
+    }
+  }
+
+  /** Find the stack top in the given state. */
+  private static Node find(ArrayList<Node> nodes, int state) {
+    for (int i = 0; i < nodes.size(); i++)
+      if (nodes.get(i).state == state)
+        return nodes.get(i);
+    return null;
+  }
+
+  /*-----------------------------------------------------------*/
+
+  /** A node of the graph-structured stack. */
+  private static final class Node {
+    final int state;
+    final int level;
+    Edge edges;
+    boolean acted;
+
+    Node(int state, int level) {
+      this.state = state;
+      this.level = level;
+    }
+  }
+
+  /** A link down the graph-structured stack, labeled with a forest node. */
+  private static final class Edge {
+    final Node to;
+    final ForestNode label;
+    final Edge next;
+
+    Edge(Node to, ForestNode label, Edge next) {
+      this.to = to;
+      this.label = label;
+      this.next = next;
+    }
+  }
+
+  /** A packed alternative of a forest node. */
+  private static final class Packed {
+    final int production;
+    final ForestNode[] children;
+    Packed next;
+
+    Packed(int production, ForestNode[] children) {
+      this.production = production;
+      this.children = children;
+    }
+  }
+
+  /*-----------------------------------------------------------*/
+
+  /**
+   * A node of the shared packed parse forest. It stands for one terminal or non
+   * terminal over a span of tokens, given as token indexes. Non terminal nodes
+   * hold one packed alternative for every production and list of children the
+   * span was derived with; child nodes are shared between alternatives.
+   */
+  public static final class ForestNode {
+    private final int sym;
+    private final boolean terminal;
+    private final int start, end;
+    private final Symbol token;
+    private Packed alternatives;
+    private int count;
+
+    ForestNode(int sym, boolean terminal, int start, int end, Symbol token) {
+      this.sym = sym;
+      this.terminal = terminal;
+      this.start = start;
+      this.end = end;
+      this.token = token;
+    }
+
+    /** Add an alternative, unless it is already there. */
+    void add(int production, ForestNode[] children) {
+      Packed last = null;
+      for (Packed p = alternatives; p != null; last = p, p = p.next) {
+        if (p.production != production)
+          continue;
+        boolean same = true;
+        for (int i = 0; same && i < children.length; i++)
+          same = p.children[i] == children[i];
+        if (same)
+          return;
+      }
+      if (last == null)
+        alternatives = new Packed(production, children);
+      else
+        last.next = new Packed(production, children);
+      count++;
+    }
+
+    /** The index of the terminal or non terminal. */
+    public int getSym() {
+      return sym;
+    }
+
+    /** Is this the node of a token? */
+    public boolean isTerminal() {
+      return terminal;
+    }
+
+    /** The token of a terminal node, null for non terminals. */
+    public Symbol getToken() {
+      return token;
+    }
+
+    /** The index of the first token covered. */
+    public int getStart() {
+      return start;
+    }
+
+    /** The index after the last token covered. */
+    public int getEnd() {
+      return end;
+    }
+
+    /** The number of alternatives (0 for terminals). */
+    public int getAlternativeCount() {
+      return count;
+    }
+
+    /** Was the span derived in more than one way? */
+    public boolean isAmbiguous() {
+      return count > 1;
+    }
+
+    private Packed alternative(int k) {
+      Packed p = alternatives;
+      for (int i = 0; i < k && p != null; i++)
+        p = p.next;
+      if (p == null)
+        throw new IndexOutOfBoundsException("alternative " + k + " of " + count);
+      return p;
+    }
+
+    /** The production of an alternative, as passed to do_action(). */
+    public int getProduction(int k) {
+      return alternative(k).production;
+    }
+
+    /** The children of an alternative. The array must not be modified. */
+    public ForestNode[] getChildren(int k) {
+      return alternative(k).children;
+    }
+
+    @Override
+    public String toString() {
+      return (terminal ? "terminal #" : "non terminal #") + sym + " [" + start + ", " + end + ")"
+          + (count > 1 ? " (" + count + " alternatives)" : "");
+    }
+  }
+}
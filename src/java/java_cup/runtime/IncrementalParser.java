@@ -0,0 +1,431 @@
+package java_cup.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * This class drives a generated parser incrementally. It keeps the parse tree
+ * of the previous parse, together with the parse states that were recorded in
+ * <code>Symbol.parse_state</code> when each Symbol was pushed, and reparses an
+ * edited token sequence by reusing every subtree that the edit did not touch.
+ * <p>
+ *
+ * Reparsing follows the scheme of Wagner and Graham: the old tree is used as
+ * the input stream. Whenever the leftmost pending subtree lies entirely outside
+ * the damaged region, the parser first performs the reductions its leftmost
+ * terminal calls for, and then shifts the whole subtree as a single non
+ * terminal if the state on top of the stack is the state the subtree was
+ * originally built upon and the terminal following it did not change. Otherwise
+ * the subtree is broken down into its children. Only reductions that are
+ * actually redone execute user actions, so the cost of a reparse is
+ * proportional to the size of the edit (plus the depth of the tree), not to the
+ * size of the input. The exception are the list spines above the edit: in a
+ * left-recursive list, every list node to the right of the edit has a new left
+ * child and is reduced again (its items are still reused).
+ * <p>
+ *
+ * Lexing is left to the caller: after an edit, the caller re-lexes the damaged
+ * region of the text and hands the resulting Symbols to
+ * <code>reparse()</code> along with the range of old tokens they replace.
+ * Locations of the tokens following the edit are not adjusted here; scanners
+ * based on <code>ComplexSymbolFactory</code> can use
+ * <code>Location.move()</code> for that.
+ * <p>
+ *
+ * User actions must tolerate being executed again for the same input, since
+ * reductions spanning the edit are redone. The incremental driver does no
+ * error recovery: a syntax error is reported through
+ * <code>syntax_error()</code> and <code>unrecovered_syntax_error()</code> of
+ * the driven parser, and the previous parse is kept.
+ *
+ * @see java_cup.runtime.lr_parser
+ */
+public class IncrementalParser {
+
+  /**
+   * A node of the retained parse tree. A node holds the Symbol that was pushed
+   * onto the parse stack, the state that was on top of the stack below it, the
+   * number of terminals it spans and, for non terminals, its children.
+   */
+  public static final class Node {
+    final Symbol symbol;
+    final Node[] children;
+    final int pred_state;
+    final int tokens;
+    final Symbol first;
+
+    Node(Symbol symbol, int pred_state) {
+      this.symbol = symbol;
+      this.children = null;
+      this.pred_state = pred_state;
+      this.tokens = 1;
+      this.first = symbol;
+    }
+
+    Node(Symbol symbol, Node[] children, int pred_state) {
+      int n = 0;
+      Symbol f = null;
+      for (Node c : children) {
+        n += c.tokens;
+        if (f == null)
+          f = c.first;
+      }
+      this.symbol = symbol;
+      this.children = children;
+      this.pred_state = pred_state;
+      this.tokens = n;
+      this.first = f;
+    }
+
+    /** The Symbol of this node, as it was pushed onto the parse stack. */
+    public Symbol getSymbol() {
+      return symbol;
+    }
+
+    /** Is this node a terminal (a token of the input)? */
+    public boolean isTerminal() {
+      return children == null;
+    }
+
+    /** Number of children (0 for terminals and empty productions). */
+    public int getChildCount() {
+      return children == null ? 0 : children.length;
+    }
+
+    /** Access to the i-th child of a non terminal node. */
+    public Node getChild(int i) {
+      return children[i];
+    }
+
+    /** Number of terminals spanned by this node. */
+    public int size() {
+      return tokens;
+    }
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- Constructor(s) ----------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Create an incremental driver for a parser. The parser's scanner is only
+   * used by <code>parse()</code> to read the initial input.
+   *
+   * @param parser the generated parser to drive.
+   */
+  public IncrementalParser(lr_parser parser) {
+    this.parser = parser;
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- (Access to) Instance Variables ------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** The parser whose tables and actions we use. */
+  protected final lr_parser parser;
+
+  /** Has the action object of the parser been set up? */
+  private boolean initialized = false;
+
+  /** Tokens of the current input, always terminated by an EOF Symbol. */
+  private ArrayList<Symbol> tokens = new ArrayList<>();
+
+  /** Root of the current parse tree (null before the first parse). */
+  private Node root;
+
+  /** Number of subtrees shifted as a whole during the last (re)parse. */
+  private int reused;
+
+  /** The tokens of the current input (including the terminating EOF). */
+  public List<Symbol> getTokens() {
+    return java.util.Collections.unmodifiableList(tokens);
+  }
+
+  /** Root of the current parse tree, i.e. the node of the start production. */
+  public Node getTree() {
+    return root;
+  }
+
+  /** Number of subtrees reused by the last call to <code>reparse()</code>. */
+  public int getReusedNodeCount() {
+    return reused;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+  /* State of a single (re)parse */
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /** Pending subtrees of the old tree, top is the next one. */
+  private ArrayList<Node> pending = new ArrayList<>();
+
+  /** Old token position of each pending subtree. */
+  private int[] pending_pos = new int[16];
+
+  /** The damaged region, in old token positions, and its replacement. */
+  private int edit_pos, edit_removed;
+  private List<Symbol> edit_tokens;
+
+  /** Index of the next replacement token to hand out. */
+  private int edit_next;
+
+  /** Old position of the current lookahead (-1 for replacement tokens). */
+  private int la_pos;
+
+  /** Nodes parallel to the Symbols on the parse stack of the parser. */
+  private ArrayList<Node> nodes = new ArrayList<>();
+
+  /*-----------------------------------------------------------*/
+  /*--- General Methods ---------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Parse the complete input delivered by the parser's <code>scan()</code> and
+   * remember the parse for later reparses.
+   *
+   * @return the Symbol of the start production, as returned by
+   *         <code>lr_parser.parse()</code>.
+   */
+  public Symbol parse() throws java.lang.Exception {
+    init();
+    parser.user_init();
+    List<Symbol> input = new ArrayList<>();
+    Symbol s;
+    do {
+      s = parser.scan();
+      input.add(s);
+    } while (s.sym != parser.EOF_sym());
+    return parse(input);
+  }
+
+  /**
+   * Parse the given tokens and remember the parse for later reparses. If the
+   * list is not terminated by an EOF Symbol, one is appended.
+   *
+   * @param input the tokens of the input.
+   * @return the Symbol of the start production.
+   */
+  public Symbol parse(List<Symbol> input) throws java.lang.Exception {
+    init();
+    ArrayList<Symbol> all = new ArrayList<>(input);
+    if (all.isEmpty() || all.get(all.size() - 1).sym != parser.EOF_sym())
+      all.add(parser.getSymbolFactory().newSymbol("END_OF_FILE", parser.EOF_sym()));
+    tokens = new ArrayList<>();
+    root = null;
+    return run(0, 0, all);
+  }
+
+  /**
+   * Reparse after an edit. The tokens at positions <code>first</code> to
+   * <code>first+removed-1</code> of the current input are replaced by the
+   * freshly scanned <code>inserted</code> tokens (either range may be empty).
+   * The terminating EOF token cannot be replaced. An edit that neither removes
+   * nor inserts tokens keeps the current parse.
+   *
+   * @param first    position of the first replaced token.
+   * @param removed  number of replaced tokens.
+   * @param inserted the new tokens of the damaged region.
+   * @return the Symbol of the start production.
+   */
+  public Symbol reparse(int first, int removed, List<Symbol> inserted) throws java.lang.Exception {
+    if (root == null)
+      throw new IllegalStateException("reparse() requires a previous parse");
+    if (first < 0 || removed < 0 || first + removed > tokens.size() - 1)
+      throw new IndexOutOfBoundsException("Edit [" + first + "," + (first + removed) + ") is outside of the input");
+    if (removed == 0 && inserted.isEmpty()) {
+      reused = 0;
+      return root.symbol;
+    }
+    return run(first, removed, inserted);
+  }
+
+  /** Set up the tables and the action object of the parser once. */
+  protected void init() throws java.lang.Exception {
+    if (initialized)
+      return;
+    parser.production_tab = parser.production_table();
+    parser.action_tab = parser.action_table();
+    parser.reduce_tab = parser.reduce_table();
+    parser.init_actions();
+    initialized = true;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Run the parser over the old tree with the given edit applied, and commit
+   * the result if the parse succeeds.
+   */
+  protected Symbol run(int first, int removed, List<Symbol> inserted) throws java.lang.Exception {
+    /* the current action code */
+    int act;
+
+    /* the current lookahead: a terminal or a reusable subtree */
+    Node la;
+
+    /* information about production being reduced with */
+    short handle_size, lhs_sym_num;
+
+    Stack<Symbol> stack = parser.stack;
+    Node result = null;
+
+    /* set up the input stream: the old tree with the edit applied */
+    edit_pos = first;
+    edit_removed = removed;
+    edit_tokens = inserted;
+    edit_next = 0;
+    pending.clear();
+    if (root != null)
+      push_pending(root, 0);
+    reused = 0;
+
+    /* push dummy Symbol with start state to get us underway */
+    stack.removeAllElements();
+    stack.push(parser.getSymbolFactory().startSymbol("START", 0, parser.start_state()));
+    parser.tos = 0;
+    nodes.clear();
+    nodes.add(null);
+
+    la = next_lookahead();
+    for (parser._done_parsing = false; !parser._done_parsing;) {
+      int state = stack.peek().parse_state;
+
+      /* look up the action under the leftmost terminal of the lookahead */
+      act = parser.get_action(state, la.first.sym);
+
+      if (act > 0 && la.children != null) {
+        /* a whole subtree: shift it if it was built upon this very state */
+        if (la.pred_state == state && la_pos >= 0 && follower_unchanged(la)) {
+          la.symbol.parse_state = parser.get_reduce(state, la.symbol.sym);
+          stack.push(la.symbol);
+          nodes.add(la);
+          parser.tos++;
+          reused++;
+        } else
+          break_down(la);
+        la = next_lookahead();
+      } else if (act > 0) {
+        /* shift the terminal */
+        la.symbol.parse_state = act - 1;
+        la.symbol.used_by_parser = true;
+        stack.push(la.symbol);
+        nodes.add(la);
+        parser.tos++;
+        la = next_lookahead();
+      } else if (act < 0) {
+        /* perform the action for the reduce */
+        Symbol lhs_sym = parser.do_action((-act) - 1, parser, stack, parser.tos);
+
+        /* look up information about the production */
+        lhs_sym_num = parser.production_tab[(-act) - 1][0];
+        handle_size = parser.production_tab[(-act) - 1][1];
+
+        /* pop the handle off the stack, collecting the children */
+        Node[] children = new Node[handle_size];
+        for (int i = handle_size - 1; i >= 0; i--) {
+          stack.pop();
+          children[i] = nodes.remove(nodes.size() - 1);
+          parser.tos--;
+        }
+
+        /* shift the lhs to the state to go to from the one popped back to */
+        int pred = stack.peek().parse_state;
+        lhs_sym.parse_state = parser.get_reduce(pred, lhs_sym_num);
+        lhs_sym.used_by_parser = true;
+        result = new Node(lhs_sym, children, pred);
+        stack.push(lhs_sym);
+        nodes.add(result);
+        parser.tos++;
+      } else if (la.children != null) {
+        /* an error under a subtree is reported at its terminal */
+        break_down(la);
+        la = next_lookahead();
+      } else {
+        parser.syntax_error(la.symbol);
+        parser.unrecovered_syntax_error(la.symbol);
+        parser.done_parsing();
+        pending.clear();
+        return null;
+      }
+    }
+
+    /* commit the new input and tree */
+    tokens.subList(first, first + removed).clear();
+    tokens.addAll(first, inserted);
+    root = result;
+    pending.clear();
+    return result.symbol;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /** Push a subtree of the old tree onto the pending input. */
+  private void push_pending(Node n, int pos) {
+    if (pending.size() == pending_pos.length)
+      pending_pos = java.util.Arrays.copyOf(pending_pos, pending_pos.length * 2);
+    pending_pos[pending.size()] = pos;
+    pending.add(n);
+  }
+
+  /** Replace the current lookahead (a subtree) by its children. */
+  private void break_down(Node n) {
+    int pos = la_pos + n.tokens;
+    for (int i = n.children.length - 1; i >= 0; i--) {
+      pos -= n.children[i].tokens;
+      push_pending(n.children[i], pos);
+    }
+  }
+
+  /**
+   * Deliver the next lookahead: the next replacement token if we reached the
+   * damaged region, else the leftmost pending subtree of the old tree, broken
+   * down until it lies entirely outside of the damaged region. The root is
+   * always broken down: the node of the start production can't be shifted.
+   */
+  private Node next_lookahead() {
+    for (;;) {
+      int top = pending.size() - 1;
+      if (edit_next < edit_tokens.size() && (top < 0 || pending_pos[top] >= edit_pos)) {
+        la_pos = -1;
+        return new Node(edit_tokens.get(edit_next++), -1);
+      }
+
+      /* past the EOF token, as scan() would */
+      if (top < 0) {
+        la_pos = -1;
+        return new Node(parser.getSymbolFactory().newSymbol("END_OF_FILE", parser.EOF_sym()), -1);
+      }
+      Node n = pending.remove(top);
+      int pos = pending_pos[top];
+      int end = pos + n.tokens;
+
+      /* empty subtrees are redone by the parser if needed */
+      if (n.tokens == 0)
+        continue;
+
+      /* deleted tokens are dropped */
+      if (pos >= edit_pos && end <= edit_pos + edit_removed)
+        continue;
+
+      la_pos = pos;
+      if (n.children == null || n != root && (end <= edit_pos || pos >= edit_pos + edit_removed))
+        return n;
+
+      /* the subtree overlaps the damaged region */
+      break_down(n);
+    }
+  }
+
+  /**
+   * Check whether the terminal following a subtree in the new input is of the
+   * same kind as in the old input. Reductions at the end of the subtree were
+   * chosen under that terminal as lookahead.
+   */
+  private boolean follower_unchanged(Node n) {
+    int end = la_pos + n.tokens;
+    if (end != edit_pos)
+      return true;
+    Symbol now = edit_tokens.isEmpty() ? tokens.get(edit_pos + edit_removed) : edit_tokens.get(0);
+    return now.sym == tokens.get(end).sym;
+  }
+}
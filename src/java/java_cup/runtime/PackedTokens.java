@@ -0,0 +1,329 @@
+package java_cup.runtime;
+
+import java.util.Arrays;
+
+import java_cup.runtime.ComplexSymbolFactory.ComplexSymbol;
+import java_cup.runtime.ComplexSymbolFactory.LineIndex;
+import java_cup.runtime.ComplexSymbolFactory.PackedSymbol;
+
+/**
+ * This class stores a token sequence in primitive arrays: for each token its
+ * Symbol number, its left and right position (as in <code>Symbol.left</code>
+ * and <code>Symbol.right</code>, the offsets for ComplexSymbols, kept as long
+ * offsets for PackedSymbols of inputs beyond 2 GB) and the index of its value,
+ * if it has one. This takes 24 bytes per token plus the values,
+ * instead of a Symbol object per token (and two Location objects for a
+ * ComplexSymbol).
+ * <p>
+ *
+ * The input can be tokenized once with <code>read()</code> and then be parsed
+ * any number of times through <code>scanner()</code>, which creates the Symbol
+ * of a token only when the parser asks for it.
+ * <p>
+ *
+ * Without a line index the tokens are replayed as plain Symbols, which suits
+ * parsers using the DefaultSymbolFactory. Parsers using a ComplexSymbolFactory,
+ * in particular those generated with -locations, need ComplexSymbols: give the
+ * store the line index of the input, and the tokens are replayed as
+ * PackedSymbols whose Locations are computed from their offsets. The left and
+ * right positions of the stored ComplexSymbols must then be offsets, as those
+ * of the scanners in testgrammars are. Storing a ComplexSymbol without a line
+ * index is rejected, since replaying it as a plain Symbol would fail in the
+ * generated action code.
+ * <p>
+ *
+ * Example: <code>
+ * PackedTokens tokens = new PackedTokens(LineIndex.of(file, text));
+ * tokens.read(new Lexer(new StringReader(text), sf));
+ * new Parser(tokens.scanner(), sf).parse();
+ * </code>
+ */
+public class PackedTokens {
+
+  /*-----------------------------------------------------------*/
+  /*--- Constructor(s) ----------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Create an empty token store for plain Symbols. */
+  public PackedTokens() {
+    this(1024, null);
+  }
+
+  /**
+   * Create an empty token store for plain Symbols.
+   *
+   * @param capacity the number of tokens to make room for up front.
+   */
+  public PackedTokens(int capacity) {
+    this(capacity, null);
+  }
+
+  /**
+   * Create an empty token store replaying its tokens as PackedSymbols.
+   *
+   * @param lines the line index of the input.
+   */
+  public PackedTokens(LineIndex lines) {
+    this(1024, lines);
+  }
+
+  /**
+   * Create an empty token store.
+   *
+   * @param capacity the number of tokens to make room for up front.
+   * @param lines    the line index of the input, or null for plain Symbols.
+   */
+  public PackedTokens(int capacity, LineIndex lines) {
+    this.lines = lines;
+    capacity = Math.max(capacity, 16);
+    syms = new int[capacity];
+    lefts = new long[capacity];
+    rights = new long[capacity];
+    value_idx = new int[capacity];
+    values = new Object[Math.max(capacity / 4, 16)];
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- (Access to) Instance Variables ------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Symbol number of each token. */
+  protected int[] syms;
+
+  /** Left and right position of each token. */
+  protected long[] lefts, rights;
+
+  /** Index of the value of each token in values, -1 for none. */
+  protected int[] value_idx;
+
+  /** The values of the tokens that have one. */
+  protected Object[] values;
+
+  /** Number of tokens. */
+  protected int size;
+
+  /** Number of values. */
+  protected int nvalues;
+
+  /** The line index the Locations of the tokens come from, or null. */
+  protected final LineIndex lines;
+
+  /** The name of each Symbol number, taken from the ComplexSymbols read. */
+  protected String[] names = new String[0];
+
+  /** Number of tokens. */
+  public int size() {
+    return size;
+  }
+
+  /** Symbol number of a token. */
+  public int sym(int i) {
+    check(i);
+    return syms[i];
+  }
+
+  /** Left position of a token, -1 if it is beyond the int range. */
+  public int left(int i) {
+    check(i);
+    return position(lefts[i]);
+  }
+
+  /** Right position of a token, -1 if it is beyond the int range. */
+  public int right(int i) {
+    check(i);
+    return position(rights[i]);
+  }
+
+  /** Left position of a token as a long offset. */
+  public long start(int i) {
+    check(i);
+    return lefts[i];
+  }
+
+  /** Right position of a token as a long offset. */
+  public long end(int i) {
+    check(i);
+    return rights[i];
+  }
+
+  /** An offset as an int position, like in PackedSymbol. */
+  private static int position(long offset) {
+    return offset <= Integer.MAX_VALUE ? (int) offset : -1;
+  }
+
+  /** Value of a token, or null. */
+  public Object value(int i) {
+    check(i);
+    int v = value_idx[i];
+    return v < 0 ? null : values[v];
+  }
+
+  private void check(int i) {
+    if (i < 0 || i >= size)
+      throw new IndexOutOfBoundsException("Token " + i + " not in [0, " + size + ")");
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- General Methods ---------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Append a token.
+   *
+   * @return the index of the token.
+   */
+  public int add(int sym, long left, long right, Object value) {
+    if (size == syms.length) {
+      int n = grow(size);
+      syms = Arrays.copyOf(syms, n);
+      lefts = Arrays.copyOf(lefts, n);
+      rights = Arrays.copyOf(rights, n);
+      value_idx = Arrays.copyOf(value_idx, n);
+    }
+    syms[size] = sym;
+    lefts[size] = left;
+    rights[size] = right;
+    if (value == null)
+      value_idx[size] = -1;
+    else {
+      if (nvalues == values.length)
+        values = Arrays.copyOf(values, grow(nvalues));
+      values[nvalues] = value;
+      value_idx[size] = nvalues++;
+    }
+    return size++;
+  }
+
+  /**
+   * Append the token of a Symbol. The name of a ComplexSymbol is kept for its
+   * Symbol number.
+   *
+   * @return the index of the token.
+   * @throws IllegalArgumentException for a ComplexSymbol if there is no line
+   *                                  index, or if it has Locations without
+   *                                  offsets.
+   */
+  public int add(Symbol s) {
+    if (s instanceof ComplexSymbol) {
+      ComplexSymbol cs = (ComplexSymbol) s;
+      if (lines == null)
+        throw new IllegalArgumentException("Can't replay " + s + " without a line index");
+      if (!(s instanceof PackedSymbol) && cs.getLeft() != null && s.left < 0)
+        throw new IllegalArgumentException("Can't replay " + s + ", its Locations have no offsets");
+      if (s.sym >= names.length)
+        names = Arrays.copyOf(names, Math.max(s.sym + 1, names.length * 2));
+      if (names[s.sym] == null)
+        names[s.sym] = cs.getName();
+      if (s instanceof PackedSymbol)
+        return add(s.sym, ((PackedSymbol) s).start, ((PackedSymbol) s).end, s.value);
+    }
+    return add(s.sym, s.left, s.right, s.value);
+  }
+
+  /** New length for an array of the given length that is full. */
+  private static int grow(int n) {
+    if (n == Integer.MAX_VALUE - 8)
+      throw new OutOfMemoryError("Too many tokens");
+    return (int) Math.min(n + (n >> 1) + 1L, Integer.MAX_VALUE - 8);
+  }
+
+  /**
+   * Append all tokens of a scanner, up to and including the EOF Symbol (Symbol
+   * number 0). If the scanner returns null, an EOF token is appended instead.
+   *
+   * @param s the scanner to read.
+   */
+  public void read(Scanner s) throws java.lang.Exception {
+    if (s instanceof BatchScanner) {
+      BatchScanner bs = (BatchScanner) s;
+      Symbol[] buf = new Symbol[256];
+      for (;;) {
+        int n = bs.next_tokens(buf, 0, buf.length);
+        if (n == 0) {
+          add(0, -1, -1, null);
+          return;
+        }
+        for (int i = 0; i < n; i++) {
+          add(buf[i]);
+          if (buf[i].sym == 0)
+            return;
+        }
+      }
+    }
+    for (;;) {
+      Symbol sym = s.next_token();
+      if (sym == null) {
+        add(0, -1, -1, null);
+        return;
+      }
+      add(sym);
+      if (sym.sym == 0)
+        return;
+    }
+  }
+
+  /** Release the room not used by tokens yet. */
+  public void trim() {
+    syms = Arrays.copyOf(syms, size);
+    lefts = Arrays.copyOf(lefts, size);
+    rights = Arrays.copyOf(rights, size);
+    value_idx = Arrays.copyOf(value_idx, size);
+    values = Arrays.copyOf(values, nvalues);
+  }
+
+  /**
+   * Create the Symbol of a token: a PackedSymbol if there is a line index, a
+   * plain Symbol otherwise. Every call creates a new Symbol; subclasses can
+   * override this to create Symbols of their own type.
+   *
+   * @param i the index of the token.
+   */
+  public Symbol symbol(int i) {
+    check(i);
+    int v = value_idx[i];
+    Object value = v < 0 ? null : values[v];
+    if (lines == null)
+      return new Symbol(syms[i], position(lefts[i]), position(rights[i]), value);
+    int sym = syms[i];
+    String name = sym < names.length && names[sym] != null ? names[sym] : "#" + sym;
+    return new PackedSymbol(name, sym, lefts[i], rights[i], value, lines);
+  }
+
+  /**
+   * A scanner handing out the tokens from the first one on. After the last
+   * token it returns null, i.e. end of file.
+   */
+  public BatchScanner scanner() {
+    return scanner(0);
+  }
+
+  /**
+   * A scanner handing out the tokens from the given one on. After the last
+   * token it returns null, i.e. end of file.
+   *
+   * @param from the index of the first token.
+   */
+  public BatchScanner scanner(int from) {
+    if (from < 0 || from > size)
+      throw new IndexOutOfBoundsException("Token " + from + " not in [0, " + size + "]");
+    return new BatchScanner() {
+      private int next = from;
+
+      @Override
+      public Symbol next_token() {
+        return next < size ? symbol(next++) : null;
+      }
+
+      @Override
+      public int next_tokens(Symbol[] buf, int off, int len) {
+        int n = 0, end = Math.min(next + len, size);
+        while (next < end) {
+          Symbol s = buf[off + n++] = symbol(next++);
+          if (s.sym == 0)
+            break;
+        }
+        return n;
+      }
+    };
+  }
+}
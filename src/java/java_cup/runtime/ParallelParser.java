@@ -0,0 +1,527 @@
+package java_cup.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * This class implements a speculative parallel parse driver for generated
+ * parsers. The token stream is read up front and split into chunks right after
+ * user declared synchronization terminals (such as a top-level <code>;</code>
+ * or <code>}</code>). Every chunk is parsed concurrently on its own parser
+ * instance, starting from a guessed parse stack, and the partial results are
+ * then stitched together in order on the main parser.
+ * <p>
+ *
+ * The guessed stack of a chunk only consists of parse states. Reductions that
+ * stay within the part of the stack a chunk built itself are executed right
+ * away (these are the bulk of the work, e.g. whole statements or functions).
+ * Reductions that reach into the guessed part cannot run their actions, since
+ * the values below are not known yet; they are pushed as placeholders and
+ * logged, and are replayed on the real stack while stitching. Before a chunk is
+ * stitched, its log is checked against the real stack: if the real parse
+ * states differ from the guessed ones anywhere the chunk depended on them, the
+ * guess was wrong and the chunk is parsed again sequentially.
+ * <p>
+ *
+ * The guess for all chunks is the stack found at the end of the first chunk by
+ * running the tables (without actions) over it. This is right whenever the
+ * synchronization terminals separate repetitions of the same construct at the
+ * same nesting level, which is what they should be declared for. Bracket pairs
+ * can be declared so that synchronization terminals within brackets are not
+ * used as split points.
+ * <p>
+ *
+ * Since chunks run concurrently and may be parsed twice, user actions must be
+ * free of side effects other than building their results, and the parser
+ * factory must hand out independent parser instances. No error recovery is
+ * done: a syntax error is reported through <code>syntax_error()</code> and
+ * <code>unrecovered_syntax_error()</code> of the main parser.
+ *
+ * @see java_cup.runtime.lr_parser
+ */
+public class ParallelParser {
+
+  /*-----------------------------------------------------------*/
+  /*--- Constructor(s) ----------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Create a parallel parse driver. The factory is called once for the main
+   * parser, which also provides the input through its <code>scan()</code>, and
+   * once for every chunk parsed at the same time. The worker parsers are kept by
+   * the driver, not by the threads, and reused by later parses.
+   *
+   * @param factory supplier of fresh, independent parser instances.
+   */
+  public ParallelParser(Supplier<? extends lr_parser> factory) {
+    this.factory = factory;
+    this.main = factory.get();
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- (Access to) Instance Variables ------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Supplier of parser instances. */
+  protected final Supplier<? extends lr_parser> factory;
+
+  /** The parser the chunks are stitched together on. */
+  protected final lr_parser main;
+
+  /** Idle worker parsers, set up for parsing another chunk. */
+  private final ConcurrentLinkedQueue<lr_parser> workers = new ConcurrentLinkedQueue<>();
+
+  /** Executor parsing the chunks (the common pool if none was set). */
+  private ExecutorService executor;
+
+  /** Terminals after which the input may be split. */
+  private boolean[] sync = new boolean[0];
+
+  /** Bracket nesting, by terminal: +1 for openers, -1 for closers. */
+  private int[] nesting = new int[0];
+
+  /** Minimum number of tokens in a chunk. */
+  private int min_chunk_size = 4096;
+
+  /** Number of chunks of the last parse. */
+  private int chunks;
+
+  /** Number of chunks that had to be parsed again sequentially. */
+  private int fallbacks;
+
+  /** Declare a terminal after which the input may be split. */
+  public void addSyncTerminal(int sym) {
+    if (sym >= sync.length)
+      sync = Arrays.copyOf(sync, sym + 1);
+    sync[sym] = true;
+  }
+
+  /**
+   * Declare a pair of bracket terminals. Synchronization terminals are only
+   * used as split points outside of all brackets.
+   */
+  public void addBracketPair(int open, int close) {
+    int max = Math.max(open, close);
+    if (max >= nesting.length)
+      nesting = Arrays.copyOf(nesting, max + 1);
+    nesting[open] = 1;
+    nesting[close] = -1;
+  }
+
+  /** Set the minimum number of tokens per chunk. */
+  public void setMinChunkSize(int tokens) {
+    min_chunk_size = Math.max(1, tokens);
+  }
+
+  /** Set the executor to parse chunks on. */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /** The parser chunks are stitched on (and whose scanner is read). */
+  public lr_parser getParser() {
+    return main;
+  }
+
+  /** Number of chunks the input of the last parse was split into. */
+  public int getChunkCount() {
+    return chunks;
+  }
+
+  /** Number of chunks of the last parse whose guessed stack was wrong. */
+  public int getFallbackCount() {
+    return fallbacks;
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- General Methods ---------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Read the complete input through <code>scan()</code> of the main parser and
+   * parse it in parallel.
+   *
+   * @return the Symbol of the start production, as <code>parse()</code> does.
+   */
+  public Symbol parse() throws java.lang.Exception {
+    init(main);
+    main.user_init();
+    List<Symbol> input = new ArrayList<>();
+    Symbol s;
+    do {
+      s = main.scan();
+      input.add(s);
+    } while (s.sym != main.EOF_sym());
+    return parse_tokens(input);
+  }
+
+  /**
+   * Parse the given tokens in parallel. If the list is not terminated by an EOF
+   * Symbol, one is appended.
+   *
+   * @param input the tokens of the input.
+   * @return the Symbol of the start production.
+   */
+  public Symbol parse(List<Symbol> input) throws java.lang.Exception {
+    init(main);
+    main.user_init();
+    return parse_tokens(input);
+  }
+
+  /** Parse the given tokens with an initialized main parser. */
+  private Symbol parse_tokens(List<Symbol> input) throws java.lang.Exception {
+    int eof = main.EOF_sym();
+    ArrayList<Symbol> all = new ArrayList<>(input.size() + 1);
+    all.addAll(input);
+    if (all.isEmpty() || all.get(all.size() - 1).sym != eof)
+      all.add(main.getSymbolFactory().newSymbol("END_OF_FILE", eof));
+    Symbol[] tokens = all.toArray(new Symbol[all.size()]);
+
+    int[] bounds = split(tokens);
+    chunks = bounds.length - 1;
+    fallbacks = 0;
+
+    /* guess the stack at the chunk boundaries from the first chunk */
+    int[] guess = chunks > 1 ? guess_stack(tokens, bounds[1]) : null;
+
+    /* parse all chunks speculatively */
+    ExecutorService ex = executor != null ? executor : ForkJoinPool.commonPool();
+    List<Future<Chunk>> futures = new ArrayList<>(chunks);
+    for (int k = 0; k < chunks; k++) {
+      Chunk c = new Chunk(tokens, bounds[k], bounds[k + 1], k == 0 ? new int[] { main.start_state() } : guess);
+      futures.add(ex.submit(() -> {
+        lr_parser p = worker();
+        try {
+          c.parse(p);
+        } finally {
+          workers.offer(p);
+        }
+        return c;
+      }));
+    }
+
+    /* stitch them together on the real stack */
+    Stack<Symbol> stack = main.stack;
+    stack.removeAllElements();
+    stack.push(main.getSymbolFactory().startSymbol("START", 0, main.start_state()));
+    main.tos = 0;
+    main._done_parsing = false;
+    Symbol result = null;
+    try {
+      for (int k = 0; k < chunks; k++) {
+        Chunk c;
+        try {
+          c = futures.get(k).get();
+        } catch (ExecutionException e) {
+          /* the chunk ran on a guessed stack, parse it again sequentially */
+          c = null;
+        }
+        if (c != null && c.ok && c.fits(main, stack)) {
+          result = c.replay(main, stack);
+        } else {
+          fallbacks++;
+          Chunk seq = new Chunk(tokens, bounds[k], bounds[k + 1], null);
+          seq.parse(main);
+          if (!seq.ok) {
+            main.syntax_error(seq.error_token);
+            main.unrecovered_syntax_error(seq.error_token);
+            main.done_parsing();
+            return null;
+          }
+          result = seq.result;
+        }
+      }
+    } finally {
+      /* stop speculating on chunks that are no longer needed */
+      for (Future<Chunk> f : futures)
+        f.cancel(true);
+    }
+    return result;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /** Set up the tables and the action object of a parser. */
+  protected void init(lr_parser p) throws java.lang.Exception {
+    if (p.action_tab != null)
+      return;
+    p.production_tab = p.production_table();
+    p.action_tab = p.action_table();
+    p.reduce_tab = p.reduce_table();
+    p.init_actions();
+  }
+
+  /** Take an idle worker parser, or set up a new one if all are busy. */
+  private lr_parser worker() throws java.lang.Exception {
+    lr_parser p = workers.poll();
+    if (p == null) {
+      p = factory.get();
+      init(p);
+      p.user_init();
+    }
+    return p;
+  }
+
+  /**
+   * Split the tokens into chunks of about equal size, right after
+   * synchronization terminals outside of brackets.
+   *
+   * @return the chunk boundaries, starting with 0 and ending with the number of
+   *         tokens.
+   */
+  protected int[] split(Symbol[] tokens) {
+    int n = tokens.length;
+    int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+    int target = Math.max(min_chunk_size, n / (4 * parallelism));
+    int[] bounds = new int[n / target + 2];
+    int count = 0, depth = 0, last = 0;
+    bounds[count++] = 0;
+    for (int i = 0; i < n - 1; i++) {
+      int s = tokens[i].sym;
+      if (s < nesting.length)
+        depth += nesting[s];
+      if (depth == 0 && s < sync.length && sync[s] && i + 1 - last >= target && n - (i + 1) >= target / 2) {
+        if (count == bounds.length - 1)
+          bounds = Arrays.copyOf(bounds, bounds.length * 2);
+        bounds[count++] = last = i + 1;
+      }
+    }
+    bounds[count++] = n;
+    return Arrays.copyOf(bounds, count);
+  }
+
+  /**
+   * Run the tables (without actions) over the first chunk to find the parse
+   * states on the stack at its end.
+   */
+  protected int[] guess_stack(Symbol[] tokens, int end) {
+    int[] states = new int[64];
+    int top = 0;
+    states[0] = main.start_state();
+    for (int i = 0; i < end;) {
+      int act = main.get_action(states[top], tokens[i].sym);
+      if (act > 0) {
+        if (++top == states.length)
+          states = Arrays.copyOf(states, top * 2);
+        states[top] = act - 1;
+        i++;
+      } else if (act < 0) {
+        top -= main.production_tab[(-act) - 1][1];
+        if (top < 0)
+          return new int[] { main.start_state() };
+        int st = main.get_reduce(states[top], main.production_tab[(-act) - 1][0]);
+        if (++top == states.length)
+          states = Arrays.copyOf(states, top * 2);
+        states[top] = st;
+      } else
+        break;
+    }
+    /* reductions under the first token of the next chunk */
+    for (int act; (act = main.get_action(states[top], tokens[end].sym)) < 0;) {
+      if ((-act) - 1 == main.start_production())
+        break;
+      top -= main.production_tab[(-act) - 1][1];
+      if (top < 0)
+        return new int[] { main.start_state() };
+      int st = main.get_reduce(states[top], main.production_tab[(-act) - 1][0]);
+      if (++top == states.length)
+        states = Arrays.copyOf(states, top * 2);
+      states[top] = st;
+    }
+    return Arrays.copyOf(states, top + 1);
+  }
+
+  /*-----------------------------------------------------------*/
+
+  /**
+   * A chunk of the input together with the result of parsing it. After a
+   * speculative parse, the chunk holds a log of operations to perform on the
+   * real stack: pushes of Symbols the chunk completed itself, and reductions
+   * that reached into the guessed part of the stack.
+   */
+  protected static final class Chunk {
+    final Symbol[] tokens;
+    final int from, to;
+    final int[] base;
+
+    /** Did the parse of the chunk succeed? */
+    boolean ok;
+    /** The token a syntax error was found at. */
+    Symbol error_token;
+    /** The Symbol of the start production, if the chunk accepted. */
+    Symbol result;
+
+    /* the log: pushed Symbols (null for reductions), productions and states */
+    Symbol[] log_sym = new Symbol[32];
+    int[] log_prod = new int[32];
+    int[] log_state = new int[32];
+    int log_size;
+
+    Chunk(Symbol[] tokens, int from, int to, int[] base) {
+      this.tokens = tokens;
+      this.from = from;
+      this.to = to;
+      this.base = base;
+    }
+
+    private void log(Symbol s, int prod, int state) {
+      if (log_size == log_sym.length) {
+        log_sym = Arrays.copyOf(log_sym, log_size * 2);
+        log_prod = Arrays.copyOf(log_prod, log_size * 2);
+        log_state = Arrays.copyOf(log_state, log_size * 2);
+      }
+      log_sym[log_size] = s;
+      log_prod[log_size] = prod;
+      log_state[log_size++] = state;
+    }
+
+    /**
+     * Parse the chunk on the given parser. With a guessed base, the parser's
+     * stack is set up from it; without one, the parser's stack is the real one
+     * and the chunk is parsed sequentially on it.
+     */
+    void parse(lr_parser p) throws java.lang.Exception {
+      Stack<Symbol> stack = p.stack;
+      int pending = 0;
+      if (base != null) {
+        stack.removeAllElements();
+        for (int st : base)
+          stack.push(new Symbol(-1, st));
+        pending = base.length;
+      }
+      p.tos = stack.size() - 1;
+
+      Symbol eof = null;
+      int i = from;
+      Symbol cur = tokens[i];
+      for (;;) {
+        int act = p.get_action(stack.peek().parse_state, cur.sym);
+        if (act > 0) {
+          /* the first token of the next chunk is not ours */
+          if (i == to)
+            break;
+          cur.parse_state = act - 1;
+          cur.used_by_parser = true;
+          stack.push(cur);
+          p.tos++;
+          if (++i < tokens.length)
+            cur = tokens[i];
+          else {
+            if (eof == null)
+              eof = p.getSymbolFactory().newSymbol("END_OF_FILE", p.EOF_sym());
+            cur = eof;
+          }
+        } else if (act < 0) {
+          int prod = (-act) - 1;
+          short lhs = p.production_tab[prod][0];
+          short size = p.production_tab[prod][1];
+          if (stack.size() - size < pending) {
+            /* the handle reaches into the guessed stack: defer it */
+            if (stack.size() - size < 1)
+              return;
+            for (int j = pending; j < stack.size(); j++)
+              log(stack.elementAt(j), -1, stack.elementAt(j).parse_state);
+            stack.setSize(stack.size() - size);
+            int st = p.get_reduce(stack.peek().parse_state, lhs);
+            stack.push(new Symbol(-1, st));
+            log(null, prod, st);
+            pending = stack.size();
+            p.tos = pending - 1;
+            if (prod == p.start_production()) {
+              ok = true;
+              return;
+            }
+          } else {
+            /* perform the action for the reduce */
+            Symbol lhs_sym = p.do_action(prod, p, stack, p.tos);
+            for (int j = 0; j < size; j++) {
+              stack.pop();
+              p.tos--;
+            }
+            lhs_sym.parse_state = p.get_reduce(stack.peek().parse_state, lhs);
+            lhs_sym.used_by_parser = true;
+            stack.push(lhs_sym);
+            p.tos++;
+            if (prod == p.start_production()) {
+              for (int j = pending; j < stack.size(); j++)
+                log(stack.elementAt(j), -1, stack.elementAt(j).parse_state);
+              result = lhs_sym;
+              ok = true;
+              return;
+            }
+          }
+        } else {
+          error_token = cur;
+          return;
+        }
+      }
+
+      /* hand over what we built on top of the guessed stack */
+      for (int j = pending; j < stack.size(); j++)
+        log(stack.elementAt(j), -1, stack.elementAt(j).parse_state);
+      ok = true;
+    }
+
+    /**
+     * Check the log against the states of the real stack, without changing
+     * anything.
+     */
+    boolean fits(lr_parser p, Stack<Symbol> stack) {
+      if (stack.peek().parse_state != base[base.length - 1])
+        return false;
+      int[] states = new int[stack.size() + log_size];
+      int top = -1;
+      for (int j = 0; j < stack.size(); j++)
+        states[++top] = stack.elementAt(j).parse_state;
+      for (int j = 0; j < log_size; j++) {
+        if (log_sym[j] != null) {
+          /* pushes follow from the states verified before them */
+          states[++top] = log_state[j];
+        } else {
+          top -= p.production_tab[log_prod[j]][1];
+          if (top < 0)
+            return false;
+          int st = p.get_reduce(states[top], p.production_tab[log_prod[j]][0]);
+          if (st != log_state[j])
+            return false;
+          states[++top] = st;
+        }
+      }
+      return true;
+    }
+
+    /** Perform the logged operations on the real stack. */
+    Symbol replay(lr_parser p, Stack<Symbol> stack) throws java.lang.Exception {
+      Symbol last = null;
+      for (int j = 0; j < log_size; j++) {
+        Symbol s = log_sym[j];
+        if (s != null) {
+          s.parse_state = log_state[j];
+          stack.push(s);
+          p.tos++;
+        } else {
+          int prod = log_prod[j];
+          Symbol lhs_sym = p.do_action(prod, p, stack, p.tos);
+          for (int k = 0; k < p.production_tab[prod][1]; k++) {
+            stack.pop();
+            p.tos--;
+          }
+          lhs_sym.parse_state = log_state[j];
+          lhs_sym.used_by_parser = true;
+          stack.push(lhs_sym);
+          p.tos++;
+          last = lhs_sym;
+        }
+      }
+      return result != null ? result : last;
+    }
+  }
+}
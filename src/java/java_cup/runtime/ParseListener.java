@@ -0,0 +1,29 @@
+package java_cup.runtime;
+
+/**
+ * Defines the listener of a streaming parse, see
+ * <code>lr_parser.stream_parse()</code>. The listener is told about every
+ * token shifted and every production reduced, in the order the parser performs
+ * them, instead of the parser building semantic values.
+ *
+ * @see java_cup.runtime.lr_parser#stream_parse(ParseListener)
+ */
+public interface ParseListener {
+  /**
+   * Called when a token is shifted. The token is not kept by the parser.
+   *
+   * @param token the token shifted.
+   */
+  void onShift(Symbol token) throws java.lang.Exception;
+
+  /**
+   * Called when a production is reduced.
+   *
+   * @param production the index of the production, as passed to
+   *                   <code>do_action()</code>.
+   * @param lhs        the index of the left hand side non terminal.
+   * @param left       the left position of the first token covered.
+   * @param right      the right position of the last token covered.
+   */
+  void onReduce(int production, int lhs, int left, int right) throws java.lang.Exception;
+}
@@ -0,0 +1,88 @@
+package java_cup.runtime;
+
+import java.util.function.Supplier;
+
+/**
+ * This class keeps one parser instance per thread for parsing many small
+ * inputs back to back. Each parser is created once from the given factory, and
+ * every following parse only resets it to the new scanner, so that the tables
+ * and the action object are set up just once per thread.
+ * <p>
+ *
+ * Example: <code>
+ * ParserPool&lt;Parser&gt; pool = new ParserPool&lt;&gt;(() -&gt; new Parser(null, sf));
+ * Symbol result = pool.parse(new Lexer(reader, sf));
+ * </code>
+ *
+ * @see java_cup.runtime.lr_parser#reset(Scanner)
+ */
+public class ParserPool<P extends lr_parser> {
+
+  /*-----------------------------------------------------------*/
+  /*--- Constructor(s) ----------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Create a pool of parsers.
+   *
+   * @param factory supplier of new parser instances, called once per thread.
+   */
+  public ParserPool(Supplier<? extends P> factory) {
+    this.factory = factory;
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- (Access to) Instance Variables ------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Supplier of new parser instances. */
+  protected final Supplier<? extends P> factory;
+
+  /** The parser of each thread. */
+  private final ThreadLocal<P> parsers = new ThreadLocal<>();
+
+  /**
+   * The parser of the calling thread, created on first use. It must not be
+   * handed to other threads.
+   */
+  public P get() {
+    P p = parsers.get();
+    if (p == null) {
+      p = factory.get();
+      parsers.set(p);
+    }
+    return p;
+  }
+
+  /** Drop the parser of the calling thread, e.g. when the thread is pooled. */
+  public void remove() {
+    parsers.remove();
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- General Methods ---------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Parse the input of the given scanner with the parser of the calling thread.
+   *
+   * @param s the scanner to read the input from.
+   * @return the Symbol of the start production, as returned by
+   *         <code>parse()</code>.
+   */
+  public Symbol parse(Scanner s) throws java.lang.Exception {
+    P p = get();
+    p.reset(s);
+    return p.parse();
+  }
+
+  /**
+   * Parse the input of the given scanner with the parser of the calling thread,
+   * emitting debugging output.
+   */
+  public Symbol debug_parse(Scanner s) throws java.lang.Exception {
+    P p = get();
+    p.reset(s);
+    return p.debug_parse();
+  }
+}
@@ -0,0 +1,271 @@
+package java_cup.runtime;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class runs a scanner on a thread of its own, so that scanning and
+ * parsing overlap. The producer thread reads Symbols in batches and hands the
+ * batches to the parser thread through a bounded single-producer,
+ * single-consumer ring. When the ring is full the producer waits for the
+ * parser, when it is empty the parser waits for the producer.
+ * <p>
+ *
+ * The producer stops after the wrapped scanner returned the EOF Symbol (the
+ * terminal with id 0) or null, which the parser takes for the end of input
+ * too. Once that was handed out, every following call of
+ * <code>next_token()</code> returns null, so that the parser creates a fresh
+ * EOF Symbol when it reads past the end. An exception thrown by the wrapped scanner is
+ * rethrown to the parser thread once the Symbols read before it are used up.
+ * <p>
+ *
+ * Since a batch is handed over only when it is full, this is meant for reading
+ * files and other input that doesn't wait for a user. Only one thread may call
+ * <code>next_token()</code>, and the wrapped scanner must not be used by
+ * anything else while the producer runs. <code>close()</code> stops the
+ * producer, e.g. after the parser gave up on a syntax error.
+ * <p>
+ *
+ * Example: <code>
+ * try (PipelinedScanner s = new PipelinedScanner(new Lexer(reader, sf))) {
+ *   new Parser(s, sf).parse();
+ * }
+ * </code>
+ */
+public class PipelinedScanner implements BatchScanner, AutoCloseable {
+
+  /*-----------------------------------------------------------*/
+  /*--- Constructor(s) ----------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /**
+   * Wrap a scanner, using batches of 256 Symbols and a ring of 16 batches.
+   *
+   * @param inner the scanner to run on the producer thread.
+   */
+  public PipelinedScanner(Scanner inner) {
+    this(inner, 256, 16, null);
+  }
+
+  /**
+   * Wrap a scanner.
+   *
+   * @param inner     the scanner to run on the producer thread.
+   * @param batchSize the number of Symbols per batch.
+   * @param capacity  the number of batches the ring holds, rounded up to a
+   *                  power of two.
+   * @param factory   the factory creating the producer thread, or null for a
+   *                  daemon thread.
+   */
+  public PipelinedScanner(Scanner inner, int batchSize, int capacity, ThreadFactory factory) {
+    if (batchSize < 1 || capacity < 1)
+      throw new IllegalArgumentException("Batch size and capacity must be positive");
+    this.inner = inner;
+    this.batchSize = batchSize;
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity)
+      size <<= 1;
+    this.ring = new Symbol[size][];
+    this.mask = size - 1;
+    this.factory = factory;
+  }
+
+  /*-----------------------------------------------------------*/
+  /*--- (Access to) Instance Variables ------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** The scanner running on the producer thread. */
+  protected final Scanner inner;
+
+  /** Number of Symbols per batch. */
+  protected final int batchSize;
+
+  /** The factory of the producer thread, or null. */
+  private final ThreadFactory factory;
+
+  /** Batches handed from producer to consumer, slot <code>n &amp; mask</code>. */
+  private final Symbol[][] ring;
+  private final int mask;
+
+  /** Number of batches ever put into the ring, written by the producer only. */
+  private volatile long written;
+
+  /** Number of batches ever taken from the ring, written by the consumer only. */
+  private volatile long read;
+
+  /** Set by the producer after its last batch is in the ring. */
+  private volatile boolean done;
+
+  /** What the wrapped scanner threw, published before <code>done</code>. */
+  private Throwable failure;
+
+  /** Set by <code>close()</code>. */
+  private volatile boolean closed;
+
+  /** The threads, so that each side can wake the other up. */
+  private volatile Thread producer, consumer;
+
+  /** The batch being consumed and the position in it. */
+  private Symbol[] batch;
+  private int pos, len;
+
+  /** Set once the last batch was taken, or the end of input was reached. */
+  private boolean ended;
+
+  /** How long a waiting side spins before it parks. */
+  private static final int SPINS = 64;
+
+  /** Upper bound on a single park, so that a missed wake up only costs this. */
+  private static final long PARK_NANOS = 1000000L;
+
+  /*-----------------------------------------------------------*/
+  /*--- General Methods ---------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  @Override
+  public Symbol next_token() throws Exception {
+    if (pos < len)
+      return batch[pos++];
+    if (ended)
+      return null;
+    if (producer == null)
+      start();
+    if (closed)
+      throw new IllegalStateException("Scanner closed");
+
+    /* wait for the next batch */
+    long r = read;
+    for (int spins = 0; written == r; spins++) {
+      if (done && written == r)
+        return end();
+      if (spins < SPINS)
+        Thread.onSpinWait();
+      else {
+        consumer = Thread.currentThread();
+        if (written == r && !done)
+          LockSupport.parkNanos(this, PARK_NANOS);
+        consumer = null;
+      }
+    }
+    int slot = (int) r & mask;
+    batch = ring[slot];
+    ring[slot] = null;
+    len = batch.length;
+    read = r + 1;
+    Thread p = producer;
+    if (p != null)
+      LockSupport.unpark(p);
+
+    pos = 1;
+    if (batch[len - 1].sym == 0)
+      ended = true;
+    return batch[0];
+  }
+
+  /**
+   * Copy the rest of the current batch, or of the next one once it is used up.
+   */
+  @Override
+  public int next_tokens(Symbol[] buf, int off, int max) throws Exception {
+    if (pos == len) {
+      /* take the next batch, and put its first Symbol back */
+      if (next_token() == null)
+        return 0;
+      pos = 0;
+    }
+    int n = Math.min(max, len - pos);
+    System.arraycopy(batch, pos, buf, off, n);
+    pos += n;
+    return n;
+  }
+
+  /** Deliver the end of input, the failure of the wrapped scanner if any. */
+  private Symbol end() throws Exception {
+    Throwable t = failure;
+    if (t instanceof Exception)
+      throw (Exception) t;
+    if (t instanceof Error)
+      throw (Error) t;
+    ended = true;
+    return null;
+  }
+
+  /** Start the producer thread. */
+  private synchronized void start() {
+    if (producer != null)
+      return;
+    Runnable r = this::produce;
+    Thread t;
+    if (factory != null)
+      t = factory.newThread(r);
+    else {
+      t = new Thread(r, "cup-scanner");
+      t.setDaemon(true);
+    }
+    producer = t;
+    t.start();
+  }
+
+  /** The loop of the producer thread. */
+  private void produce() {
+    Symbol[] b = new Symbol[batchSize];
+    int n = 0;
+    try {
+      while (!closed) {
+        Symbol s = inner.next_token();
+        if (s != null)
+          b[n++] = s;
+        boolean last = s == null || s.sym == 0;
+        if (n == batchSize || last) {
+          if (n > 0 && !put(n == batchSize ? b : Arrays.copyOf(b, n)))
+            return;
+          if (last)
+            return;
+          b = new Symbol[batchSize];
+          n = 0;
+        }
+      }
+    } catch (Throwable t) {
+      /* hand over what was read before the failure */
+      if (n == 0 || put(Arrays.copyOf(b, n)))
+        failure = t;
+    } finally {
+      done = true;
+      Thread c = consumer;
+      if (c != null)
+        LockSupport.unpark(c);
+    }
+  }
+
+  /** Put a batch into the ring, waiting while it is full. */
+  private boolean put(Symbol[] b) {
+    long w = written;
+    for (int spins = 0; w - read == ring.length; spins++) {
+      if (closed)
+        return false;
+      if (spins < SPINS)
+        Thread.onSpinWait();
+      else
+        LockSupport.parkNanos(this, PARK_NANOS);
+    }
+    ring[(int) w & mask] = b;
+    written = w + 1;
+    Thread c = consumer;
+    if (c != null)
+      LockSupport.unpark(c);
+    return true;
+  }
+
+  /**
+   * Stop the producer thread and drop the Symbols not read yet. Does not close
+   * the input of the wrapped scanner.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Thread p = producer;
+    if (p != null)
+      LockSupport.unpark(p);
+  }
+}
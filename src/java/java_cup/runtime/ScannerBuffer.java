@@ -1,12 +1,11 @@
 package java_cup.runtime;
 
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 public class ScannerBuffer implements Scanner {
 	private Scanner inner;
-	private List<Symbol> buffer = new LinkedList<>();
+	private TokenBuffer buffer = new TokenBuffer();
+	private int window;
 
 	/**
 	 * Wraps around a custom scanner and stores all so far produced tokens in a
@@ -15,7 +14,24 @@ public class ScannerBuffer implements Scanner {
 	 * @param inner the scanner to buffer
 	 */
 	public ScannerBuffer(Scanner inner) {
+		this(inner, 0);
+	}
+
+	/**
+	 * Wraps around a custom scanner and stores the most recently produced tokens
+	 * in a buffer. Older tokens are released, so memory stays bounded when
+	 * parsing long streams. The parser never looks back at tokens it has read, so
+	 * the window only has to cover what the caller wants to access.
+	 * 
+	 * @param inner  the scanner to buffer
+	 * @param window the number of most recent tokens to keep at least, or 0 to
+	 *               keep all tokens
+	 */
+	public ScannerBuffer(Scanner inner, int window) {
+		if (window < 0)
+			throw new IllegalArgumentException("Negative window " + window);
 		this.inner = inner;
+		this.window = window;
 	}
 
 	/**
@@ -24,13 +40,35 @@ public class ScannerBuffer implements Scanner {
 	 * @return an unmodifiable Version of the buffer
 	 */
 	public List<Symbol> getBuffered() {
-		return Collections.unmodifiableList(buffer);
+		return buffer.asList();
+	}
+
+	/**
+	 * Access to the buffered Symbols by their position in the token sequence,
+	 * the first token produced has index 0.
+	 * 
+	 * @return the underlying buffer
+	 */
+	public TokenBuffer getTokens() {
+		return buffer;
+	}
+
+	/**
+	 * Release all buffered tokens before the given index, e.g. once the parser
+	 * has reduced everything that was built from them.
+	 * 
+	 * @param index the index of the first token to keep
+	 */
+	public void release(int index) {
+		buffer.release(index);
 	}
 
 	@Override
 	public Symbol next_token() throws Exception {
 		Symbol buffered = inner.next_token();
 		buffer.add(buffered);
+		if (window > 0)
+			buffer.release(buffer.size() - window);
 		return buffered;
 	}
 
@@ -0,0 +1,636 @@
+package java_cup.runtime;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import java_cup.runtime.ComplexSymbolFactory.Location;
+
+/**
+ * A compact binary encoding of XMLElement trees, and a reader that navigates
+ * an encoded tree in place.
+ * <p>
+ *
+ * The encoding starts with the magic bytes "CUPT", a version byte and a table
+ * of all strings (tags, compilation units and terminal values, the latter as
+ * written by XMLElement.dump). The nodes follow in preorder. Each node is a
+ * kind byte and the byte size of the rest of the node, so that readers can skip
+ * whole subtrees, then the tag, for nonterminals the variant and the number of
+ * children, the left and right location and for terminals the value. All
+ * numbers are varints; locations are 0 for none, or the compilation unit
+ * followed by line, column and offset.
+ * <p>
+ *
+ * The elements returned by the reader are views on the buffer: they are created
+ * on navigation, read their data from the buffer when asked, and can be used
+ * wherever an XMLElement is expected, e.g. for XMLElement.dump.
+ */
+public class SyntaxTreeBinary {
+	private static final int MAGIC = 0x43555054;
+	private static final byte VERSION = 1;
+	private static final byte NONTERMINAL = 0, TERMINAL = 1, ERROR = 2;
+
+	/*-----------------------------------------------------------*/
+	/*--- Writer ------------------------------------------------*/
+	/*-----------------------------------------------------------*/
+
+	/**
+	 * Writes the encoding of a tree; the stream is flushed, not closed
+	 *
+	 * @param root the root of the tree
+	 * @param out  the destination
+	 */
+	public static void write(XMLElement root, OutputStream out) throws IOException {
+		Writer w = new Writer(out);
+		w.measure(root);
+		w.writeInt(MAGIC);
+		w.out.write(VERSION);
+		w.writeVarint(w.strings.size());
+		for (String s : w.strings.keySet()) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			w.writeVarint(b.length);
+			w.out.write(b);
+		}
+		w.write(root);
+		w.out.flush();
+	}
+
+	private static class Writer {
+		final OutputStream out;
+		final Map<String, Integer> strings = new LinkedHashMap<>();
+		final Map<XMLElement, Integer> sizes = new IdentityHashMap<>();
+
+		Writer(OutputStream out) {
+			this.out = new BufferedOutputStream(out);
+		}
+
+		int string(String s) {
+			return strings.computeIfAbsent(s, k -> strings.size());
+		}
+
+		/**
+		 * Collects the strings and computes the body size of each node. Uses an
+		 * explicit stack, like SyntaxTreeDFS, so that deep trees don't overflow
+		 * the stack of the thread.
+		 */
+		void measure(XMLElement root) {
+			XMLElement[] elems = new XMLElement[64];
+			XMLElement[][] children = new XMLElement[64][];
+			int[] next = new int[64], size = new int[64];
+			int top = -1;
+			XMLElement e = root;
+			while (true) {
+				if (e != null) {
+					if (++top == elems.length) {
+						elems = Arrays.copyOf(elems, top * 2);
+						children = Arrays.copyOf(children, top * 2);
+						next = Arrays.copyOf(next, top * 2);
+						size = Arrays.copyOf(size, top * 2);
+					}
+					elems[top] = e;
+					children[top] = e instanceof XMLElement.NonTerminal ? e.children() : XMLElement.NONE;
+					next[top] = 0;
+					size[top] = measureHead(e);
+				}
+				if (next[top] < children[top].length) {
+					e = children[top][next[top]++];
+					continue;
+				}
+				int s = size[top];
+				sizes.put(elems[top], s);
+				elems[top] = null;
+				children[top] = null;
+				if (top-- == 0)
+					return;
+				size[top] += 1 + varintSize(s) + s;
+				e = null;
+			}
+		}
+
+		/** The body size of a node without its children. */
+		int measureHead(XMLElement e) {
+			if (e instanceof XMLElement.NonTerminal) {
+				XMLElement.NonTerminal nt = (XMLElement.NonTerminal) e;
+				return varintSize(string(nt.getTagname()) + 1) + varintSize(nt.getVariant())
+						+ varintSize(nt.children().length) + measure(nt.left()) + measure(nt.right());
+			} else if (e instanceof XMLElement.Terminal) {
+				XMLElement.Terminal t = (XMLElement.Terminal) e;
+				Object value = t.value();
+				return varintSize(string(t.getTagname()) + 1) + measure(t.left()) + measure(t.right())
+						+ varintSize(value == null ? 0 : string(value + "") + 1);
+			} else if (e instanceof XMLElement.Error)
+				return varintSize(0) + measure(e.left()) + measure(e.right());
+			else
+				throw new IllegalArgumentException("Can't encode " + e.getClass().getName());
+		}
+
+		int measure(Location l) {
+			if (l == null)
+				return 1;
+			return varintSize(string(l.getUnit()) + 1) + varintSize(zigzag(l.getLine()))
+					+ varintSize(zigzag(l.getColumn())) + varintSize(zigzag(l.getOffset()));
+		}
+
+		/** Writes the nodes in preorder, from an explicit stack like measure. */
+		void write(XMLElement root) throws IOException {
+			XMLElement[] todo = new XMLElement[64];
+			int top = 0;
+			todo[0] = root;
+			while (top >= 0) {
+				XMLElement e = todo[top--];
+				writeHead(e);
+				if (e instanceof XMLElement.NonTerminal) {
+					XMLElement[] children = e.children();
+					if (top + children.length >= todo.length)
+						todo = Arrays.copyOf(todo, Math.max(todo.length * 2, top + children.length + 1));
+					/* push in reverse, so that the first child is written first */
+					for (int j = children.length - 1; j >= 0; j--)
+						todo[++top] = children[j];
+				}
+			}
+		}
+
+		/** Writes a node without its children. */
+		void writeHead(XMLElement e) throws IOException {
+			if (e instanceof XMLElement.NonTerminal) {
+				XMLElement.NonTerminal nt = (XMLElement.NonTerminal) e;
+				out.write(NONTERMINAL);
+				writeVarint(sizes.get(e));
+				writeVarint(strings.get(nt.getTagname()) + 1);
+				writeVarint(nt.getVariant());
+				writeVarint(nt.children().length);
+				write(nt.left());
+				write(nt.right());
+			} else if (e instanceof XMLElement.Terminal) {
+				XMLElement.Terminal t = (XMLElement.Terminal) e;
+				Object value = t.value();
+				out.write(TERMINAL);
+				writeVarint(sizes.get(e));
+				writeVarint(strings.get(t.getTagname()) + 1);
+				write(t.left());
+				write(t.right());
+				writeVarint(value == null ? 0 : strings.get(value + "") + 1);
+			} else {
+				out.write(ERROR);
+				writeVarint(sizes.get(e));
+				writeVarint(0);
+				write(e.left());
+				write(e.right());
+			}
+		}
+
+		void write(Location l) throws IOException {
+			if (l == null) {
+				out.write(0);
+				return;
+			}
+			writeVarint(strings.get(l.getUnit()) + 1);
+			writeVarint(zigzag(l.getLine()));
+			writeVarint(zigzag(l.getColumn()));
+			writeVarint(zigzag(l.getOffset()));
+		}
+
+		void writeVarint(int v) throws IOException {
+			while ((v & ~0x7f) != 0) {
+				out.write((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			out.write(v);
+		}
+
+		void writeInt(int v) throws IOException {
+			out.write(v >>> 24);
+			out.write(v >>> 16);
+			out.write(v >>> 8);
+			out.write(v);
+		}
+	}
+
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static int unzigzag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static int varintSize(int v) {
+		int n = 1;
+		while ((v & ~0x7f) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/*-----------------------------------------------------------*/
+	/*--- Reader ------------------------------------------------*/
+	/*-----------------------------------------------------------*/
+
+	/**
+	 * Maps a file holding an encoded tree into memory
+	 *
+	 * @param file the file
+	 * @return the root of the tree
+	 */
+	public static XMLElement map(Path file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			return read(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+		}
+	}
+
+	/**
+	 * Reads an encoded tree from a buffer, starting at its position. The buffer
+	 * is not copied and must not be changed while the tree is in use.
+	 *
+	 * @param buf the buffer
+	 * @return the root of the tree
+	 */
+	public static XMLElement read(ByteBuffer buf) {
+		Tree t = new Tree(buf.duplicate());
+		return t.node(t.root);
+	}
+
+	private static class Tree {
+		final ByteBuffer buf;
+		final int[] string_pos;
+		final String[] string_cache;
+		final int root;
+
+		Tree(ByteBuffer buf) {
+			this.buf = buf;
+			int start = buf.position();
+			if (start + 5 > buf.limit() || buf.getInt(start) != MAGIC)
+				throw new IllegalArgumentException("Not a binary syntax tree");
+			if (buf.get(start + 4) != VERSION)
+				throw new IllegalArgumentException("Unknown binary syntax tree version " + buf.get(start + 4));
+			Cursor c = new Cursor(this, start + 5);
+			int n = c.varint();
+			string_pos = new int[n];
+			string_cache = new String[n];
+			for (int i = 0; i < n; i++) {
+				string_pos[i] = c.pos;
+				int len = c.varint();
+				c.pos += len;
+			}
+			root = c.pos;
+		}
+
+		/** Racing threads may both decode a string, which is harmless. */
+		String string(int i) {
+			if (i < 0)
+				return null;
+			String s = string_cache[i];
+			if (s == null) {
+				Cursor c = new Cursor(this, string_pos[i]);
+				byte[] b = new byte[c.varint()];
+				for (int j = 0; j < b.length; j++)
+					b[j] = buf.get(c.pos + j);
+				s = string_cache[i] = new String(b, StandardCharsets.UTF_8);
+			}
+			return s;
+		}
+
+		Node node(int at) {
+			return new Node(this, at);
+		}
+	}
+
+	/**
+	 * A read position in the buffer; each read uses its own, so that views can be
+	 * used by many threads.
+	 */
+	private static class Cursor {
+		final Tree tree;
+		int pos;
+
+		Cursor(Tree tree, int pos) {
+			this.tree = tree;
+			this.pos = pos;
+		}
+
+		int varint() {
+			int v = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = tree.buf.get(pos++);
+				v |= (b & 0x7f) << shift;
+				if (b >= 0)
+					return v;
+			}
+		}
+
+		Location location() {
+			int unit = varint();
+			if (unit == 0)
+				return null;
+			int line = unzigzag(varint()), column = unzigzag(varint()), offset = unzigzag(varint());
+			return new Location(tree.string(unit - 1), line, column, offset);
+		}
+
+		void skipLocation() {
+			if (varint() != 0) {
+				varint();
+				varint();
+				varint();
+			}
+		}
+	}
+
+	/**
+	 * An element of an encoded tree. It implements the methods of the
+	 * XMLElement kind it was written from.
+	 */
+	public static class Node extends XMLElement {
+		private final Tree tree;
+		private final int at;
+		private final byte kind;
+		/** Position of the variant (nonterminals) or locations (others). */
+		private final int rest;
+
+		private Node(Tree tree, int at) {
+			this.tree = tree;
+			this.at = at;
+			kind = tree.buf.get(at);
+			Cursor c = new Cursor(tree, at + 1);
+			c.varint();
+			tagname = tree.string(c.varint() - 1);
+			rest = c.pos;
+		}
+
+		/** Whether this was written from an XMLElement.NonTerminal. */
+		public boolean isNonTerminal() {
+			return kind == NONTERMINAL;
+		}
+
+		/** Whether this was written from an XMLElement.Terminal. */
+		public boolean isTerminal() {
+			return kind == TERMINAL;
+		}
+
+		/** The variant of a nonterminal, 0 for other elements. */
+		public int getVariant() {
+			return kind == NONTERMINAL ? new Cursor(tree, rest).varint() : 0;
+		}
+
+		/** A cursor at the left location. */
+		private Cursor locations() {
+			Cursor c = new Cursor(tree, rest);
+			if (kind == NONTERMINAL) {
+				c.varint();
+				c.varint();
+			}
+			return c;
+		}
+
+		@Override
+		public Location left() {
+			return locations().location();
+		}
+
+		@Override
+		public Location right() {
+			Cursor c = locations();
+			c.skipLocation();
+			return c.location();
+		}
+
+		/** The value of a terminal as written by XMLElement.dump, or null. */
+		public String value() {
+			if (kind != TERMINAL)
+				return null;
+			Cursor c = locations();
+			c.skipLocation();
+			c.skipLocation();
+			return tree.string(c.varint() - 1);
+		}
+
+		@Override
+		public boolean hasChildren() {
+			if (kind != NONTERMINAL)
+				return false;
+			Cursor c = new Cursor(tree, rest);
+			c.varint();
+			return c.varint() > 0;
+		}
+
+		/**
+		 * Returns an unmodifiable list of views on the children; each call creates
+		 * new views.
+		 */
+		@Override
+		public List<XMLElement> getChildren() {
+			if (kind != NONTERMINAL)
+				return super.getChildren();
+			return new Children(tree, childPositions());
+		}
+
+		/** The positions of the children in the buffer. */
+		private int[] childPositions() {
+			if (kind != NONTERMINAL)
+				return NO_CHILDREN;
+			Cursor c = new Cursor(tree, rest);
+			c.varint();
+			int[] pos = new int[c.varint()];
+			c.skipLocation();
+			c.skipLocation();
+			for (int i = 0; i < pos.length; i++) {
+				pos[i] = c.pos;
+				c.pos++;
+				int size = c.varint();
+				c.pos += size;
+			}
+			return pos;
+		}
+
+		/**
+		 * Visits the subtree in preorder, from an explicit stack like
+		 * SyntaxTreeDFS, so that deep trees don't overflow the stack of the thread.
+		 */
+		private <X extends Exception> void walk(Visit<X> v) throws X {
+			Node[] nodes = new Node[64];
+			int[][] children = new int[64][];
+			int[] next = new int[64];
+			int top = -1;
+			Node n = this;
+			while (true) {
+				if (n != null) {
+					v.start(n);
+					if (++top == nodes.length) {
+						nodes = Arrays.copyOf(nodes, top * 2);
+						children = Arrays.copyOf(children, top * 2);
+						next = Arrays.copyOf(next, top * 2);
+					}
+					nodes[top] = n;
+					children[top] = n.childPositions();
+					next[top] = 0;
+				}
+				if (next[top] < children[top].length) {
+					n = tree.node(children[top][next[top]++]);
+					continue;
+				}
+				v.end(nodes[top]);
+				nodes[top] = null;
+				children[top] = null;
+				if (top-- == 0)
+					return;
+				n = null;
+			}
+		}
+
+		@Override
+		public List<XMLElement> selectById(String s) {
+			LinkedList<XMLElement> response = new LinkedList<>();
+			if (kind == ERROR)
+				return response;
+			if (tagname.equals(s))
+				response.add(this);
+			for (XMLElement e : getChildren())
+				response.addAll(e.selectById(s));
+			return response;
+		}
+
+		@Override
+		protected void dump(XMLStreamWriter writer) throws XMLStreamException {
+			walk(new Visit<XMLStreamException>() {
+				@Override
+				public void start(Node n) throws XMLStreamException {
+					Location left = n.left(), right = n.right();
+					switch (n.kind) {
+					case NONTERMINAL:
+						writer.writeStartElement("nonterminal");
+						writer.writeAttribute("id", n.tagname);
+						writer.writeAttribute("variant", n.getVariant() + "");
+						if (left != null)
+							left.toXML(writer, "left");
+						break;
+					case TERMINAL:
+						String value = n.value();
+						writer.writeStartElement("terminal");
+						writer.writeAttribute("id", n.tagname);
+						writer.writeAttribute("left", left + "");
+						writer.writeAttribute("right", right + "");
+						if (value != null)
+							writer.writeCharacters(value);
+						writer.writeEndElement();
+						break;
+					default:
+						writer.writeStartElement("error");
+						writer.writeAttribute("left", left + "");
+						writer.writeAttribute("right", right + "");
+						writer.writeEndElement();
+					}
+				}
+
+				@Override
+				public void end(Node n) throws XMLStreamException {
+					if (n.kind != NONTERMINAL)
+						return;
+					Location right = n.right();
+					if (right != null)
+						right.toXML(writer, "right");
+					writer.writeEndElement();
+				}
+			});
+		}
+
+		@Override
+		public String toString() {
+			return text(this);
+		}
+
+		@Override
+		public void appendTo(Appendable out) throws IOException {
+			walk(new Visit<IOException>() {
+				@Override
+				public void start(Node n) throws IOException {
+					Location left = n.left(), right = n.right();
+					switch (n.kind) {
+					case NONTERMINAL:
+						if (!n.hasChildren()) {
+							out.append("<nonterminal id=\"").append(n.tagname).append("\" variant=\"")
+									.append(String.valueOf(n.getVariant())).append("\" />");
+							return;
+						}
+						out.append("<nonterminal id=\"").append(n.tagname).append("\" left=\"")
+								.append(String.valueOf(left)).append("\" right=\"").append(String.valueOf(right))
+								.append("\" variant=\"").append(String.valueOf(n.getVariant())).append("\">");
+						break;
+					case TERMINAL:
+						String value = n.value();
+						if (value == null)
+							out.append("<terminal id=\"").append(n.tagname).append("\"/>");
+						else
+							out.append("<terminal id=\"").append(n.tagname).append("\" left=\"")
+									.append(String.valueOf(left)).append("\" right=\"").append(String.valueOf(right))
+									.append("\">").append(value).append("</terminal>");
+						break;
+					default:
+						out.append("<error left=\"").append(String.valueOf(left)).append("\" right=\"")
+								.append(String.valueOf(right)).append("\"/>");
+					}
+				}
+
+				@Override
+				public void end(Node n) throws IOException {
+					if (n.kind == NONTERMINAL && n.hasChildren())
+						out.append("</nonterminal>");
+				}
+			});
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Node && ((Node) o).tree == tree && ((Node) o).at == at;
+		}
+
+		@Override
+		public int hashCode() {
+			return at;
+		}
+	}
+
+	private static final int[] NO_CHILDREN = new int[0];
+
+	/** What Node.walk does before and after the children of a node. */
+	private interface Visit<X extends Exception> {
+		void start(Node n) throws X;
+
+		void end(Node n) throws X;
+	}
+
+	private static class Children extends AbstractList<XMLElement> implements RandomAccess {
+		private final Tree tree;
+		private final int[] pos;
+
+		Children(Tree tree, int[] pos) {
+			this.tree = tree;
+			this.pos = pos;
+		}
+
+		@Override
+		public XMLElement get(int index) {
+			return tree.node(pos[index]);
+		}
+
+		@Override
+		public int size() {
+			return pos.length;
+		}
+	}
+}
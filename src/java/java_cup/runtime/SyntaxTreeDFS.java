@@ -1,16 +1,24 @@
 package java_cup.runtime;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class SyntaxTreeDFS {
 	public static interface ElementHandler {
 		public void handle(XMLElement parent, List<XMLElement> children);
 	}
 
+	/**
+	 * A visitor calling handlers registered for tags, or defaultPre and
+	 * defaultPost for elements without handler. Handlers are found by the
+	 * interned id of the tag, see XMLElement.getTagId().
+	 */
 	public static abstract class AbstractVisitor implements Visitor {
-		private HashMap<String, ElementHandler> preMap = new HashMap<>();
-		private HashMap<String, ElementHandler> postMap = new HashMap<>();
+		private ElementHandler[] preHandlers = new ElementHandler[0];
+		private ElementHandler[] postHandlers = new ElementHandler[0];
 
 		public abstract void defaultPre(XMLElement element, List<XMLElement> children);
 
@@ -18,7 +26,7 @@ public class SyntaxTreeDFS {
 
 		@Override
 		public void preVisit(XMLElement element) {
-			ElementHandler handler = preMap.get(element.tagname);
+			ElementHandler handler = handler(preHandlers, element.getTagId());
 			if (handler == null) {
 				defaultPre(element, element.getChildren());
 			} else
@@ -27,19 +35,31 @@ public class SyntaxTreeDFS {
 
 		@Override
 		public void postVisit(XMLElement element) {
-			ElementHandler handler = postMap.get(element.tagname);
+			ElementHandler handler = handler(postHandlers, element.getTagId());
 			if (handler == null) {
 				defaultPost(element, element.getChildren());
 			} else
 				handler.handle(element, element.getChildren());
 		}
 
+		private static ElementHandler handler(ElementHandler[] handlers, int id) {
+			return id >= 0 && id < handlers.length ? handlers[id] : null;
+		}
+
 		public void registerPreVisit(String s, ElementHandler h) {
-			preMap.put(s, h);
+			preHandlers = register(preHandlers, s, h);
 		}
 
 		public void registerPostVisit(String s, ElementHandler h) {
-			postMap.put(s, h);
+			postHandlers = register(postHandlers, s, h);
+		}
+
+		private static ElementHandler[] register(ElementHandler[] handlers, String s, ElementHandler h) {
+			int id = XMLElement.tagId(s);
+			if (id >= handlers.length)
+				handlers = Arrays.copyOf(handlers, id + 1);
+			handlers[id] = h;
+			return handlers;
 		}
 	}
 
@@ -49,11 +69,146 @@ public class SyntaxTreeDFS {
 		public void postVisit(XMLElement element);
 	}
 
+	/**
+	 * A visitor whose visits of a subtree do not depend on the visits of the
+	 * rest of the tree, so that subtrees may be visited by different threads.
+	 * Each subtree handed to another thread is visited by a fresh visitor from
+	 * fork(), whose results are then merged back by join().
+	 */
+	public static interface ParallelVisitor extends Visitor {
+		/**
+		 * Creates a visitor for a subtree of the tree this visitor visits
+		 */
+		public ParallelVisitor fork();
+
+		/**
+		 * Merges the results of a visitor from fork(). The visitors are joined in
+		 * document order, after the preVisit and before the postVisit of the
+		 * parent of their subtree.
+		 *
+		 * @param other the visitor of the subtree
+		 */
+		public void join(ParallelVisitor other);
+	}
+
+	/**
+	 * Visits a tree depth first, calling preVisit before and postVisit after
+	 * the children of each element. Uses an explicit stack, so that the depth of
+	 * the tree is not limited by the stack of the thread.
+	 */
 	public static void dfs(XMLElement element, Visitor visitor) {
-		visitor.preVisit(element);
-		for (XMLElement el : element.getChildren()) {
-			dfs(el, visitor);
+		walk(element, visitor, null);
+	}
+
+	/**
+	 * Visits a tree depth first; with a task, the children of the elements it
+	 * splits at are visited by the task instead.
+	 */
+	private static void walk(XMLElement element, Visitor visitor, Subtree task) {
+		XMLElement[][] children = new XMLElement[64][];
+		XMLElement[] elems = new XMLElement[64];
+		int[] next = new int[64];
+		int top = -1;
+		XMLElement el = element;
+		while (true) {
+			if (el != null) {
+				visitor.preVisit(el);
+				XMLElement[] c = el.children();
+				if (task != null && task.split(c)) {
+					task.visit(c);
+					c = XMLElement.NONE;
+				}
+				if (++top == children.length) {
+					children = Arrays.copyOf(children, top * 2);
+					elems = Arrays.copyOf(elems, top * 2);
+					next = Arrays.copyOf(next, top * 2);
+				}
+				children[top] = c;
+				elems[top] = el;
+				next[top] = 0;
+			}
+			if (next[top] < children[top].length) {
+				el = children[top][next[top]++];
+				continue;
+			}
+			visitor.postVisit(elems[top]);
+			children[top] = null;
+			elems[top] = null;
+			if (top-- == 0)
+				return;
+			el = null;
+		}
+	}
+
+	/**
+	 * Visits a tree like dfs, handing subtrees to the threads of the common
+	 * ForkJoinPool.
+	 */
+	public static void parallelDfs(XMLElement element, ParallelVisitor visitor) {
+		parallelDfs(element, visitor, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Visits a tree like dfs, handing subtrees to the threads of the given pool.
+	 * Per element, preVisit and postVisit are called in the same order as by
+	 * dfs, but by the visitor of the subtree the element is in, and the visits
+	 * of different subtrees may overlap.
+	 */
+	public static void parallelDfs(XMLElement element, ParallelVisitor visitor, ForkJoinPool pool) {
+		pool.invoke(new Subtree(element, visitor));
+	}
+
+	/**
+	 * Number of tasks waiting in the queue of a worker above which it does not
+	 * split its subtree further.
+	 */
+	private static final int SURPLUS = 3;
+
+	/** The visit of a subtree by a ParallelVisitor. */
+	private static class Subtree extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final XMLElement element;
+		private final ParallelVisitor visitor;
+
+		Subtree(XMLElement element, ParallelVisitor visitor) {
+			this.element = element;
+			this.visitor = visitor;
+		}
+
+		@Override
+		protected void compute() {
+			walk(element, visitor, this);
+		}
+
+		/**
+		 * Whether the children are worth visiting in parallel: more than one of
+		 * them has children, and the worker has few tasks waiting already.
+		 */
+		boolean split(XMLElement[] children) {
+			int inner = 0;
+			for (XMLElement child : children)
+				if (child.hasChildren() && ++inner > 1)
+					return ForkJoinTask.getSurplusQueuedTaskCount() <= SURPLUS;
+			return false;
+		}
+
+		/**
+		 * Visits the subtrees of the children with forks of the visitor, joining
+		 * them in order.
+		 */
+		void visit(XMLElement[] children) {
+			Subtree[] tasks = new Subtree[children.length];
+			for (int i = 0; i < tasks.length; i++)
+				tasks[i] = new Subtree(children[i], visitor.fork());
+			for (int i = tasks.length - 1; i > 0; i--)
+				tasks[i].fork();
+			tasks[0].compute();
+			visitor.join(tasks[0].visitor);
+			for (int i = 1; i < tasks.length; i++) {
+				tasks[i].join();
+				visitor.join(tasks[i].visitor);
+			}
 		}
-		visitor.postVisit(element);
 	}
 }
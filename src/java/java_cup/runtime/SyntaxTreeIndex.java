@@ -0,0 +1,187 @@
+package java_cup.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of the elements of an XMLElement tree by tag. The elements are
+ * numbered in preorder, so that the subtree of an element is the interval from
+ * its number up to the number after its last descendant, and the index keeps
+ * the sorted numbers of the elements of each tag. Finding the elements of a tag
+ * within a subtree is then a binary search.
+ * <p>
+ *
+ * Once built, the index is used by XMLElement.NonTerminal.selectById and by the
+ * descendant steps of SyntaxTreeXPath queries on the tree or any of its
+ * subtrees. Since elements are never changed, the index stays right for every
+ * subtree of the tree, also when a subtree is reused in another tree. The
+ * transforms of SyntaxTreeTransform index their result if their input was
+ * indexed. Building an index must not overlap with other uses of the tree.
+ */
+public class SyntaxTreeIndex {
+	private final XMLElement root;
+	/** The elements in preorder. */
+	private final XMLElement[] elems;
+	/** The number after the last descendant of each element. */
+	private final int[] end;
+	/** The position of each element among its siblings. */
+	private final int[] seq;
+	/** The sorted numbers of the elements of each tag. */
+	private final Map<String, int[]> tags;
+
+	private static final int[] NONE = new int[0];
+
+	private SyntaxTreeIndex(XMLElement root, XMLElement[] elems, int[] end, int[] seq, Map<String, int[]> tags) {
+		this.root = root;
+		this.elems = elems;
+		this.end = end;
+		this.seq = seq;
+		this.tags = tags;
+	}
+
+	/**
+	 * Builds the index of a tree and attaches it to the elements
+	 *
+	 * @param root the root of the tree
+	 * @return the index
+	 */
+	public static SyntaxTreeIndex build(XMLElement root) {
+		XMLElement[] elems = new XMLElement[256];
+		int[] parent = new int[256], seq = new int[256];
+		Map<String, int[]> lists = new HashMap<>();
+		Map<String, Integer> sizes = new HashMap<>();
+		int n = 0;
+
+		/* preorder walk, the stack holding the elements still to number */
+		XMLElement[] todo = new XMLElement[64];
+		int[] todo_parent = new int[64], todo_seq = new int[64];
+		int top = 0;
+		todo[0] = root;
+		todo_parent[0] = -1;
+		while (top >= 0) {
+			XMLElement e = todo[top];
+			if (n == elems.length) {
+				elems = Arrays.copyOf(elems, n * 2);
+				parent = Arrays.copyOf(parent, n * 2);
+				seq = Arrays.copyOf(seq, n * 2);
+			}
+			elems[n] = e;
+			parent[n] = todo_parent[top];
+			seq[n] = todo_seq[top];
+			todo[top--] = null;
+			if (e.tagname != null) {
+				int[] list = lists.get(e.tagname);
+				int size = list == null ? 0 : sizes.get(e.tagname);
+				if (list == null)
+					lists.put(e.tagname, list = new int[4]);
+				else if (size == list.length)
+					lists.put(e.tagname, list = Arrays.copyOf(list, size * 2));
+				list[size] = n;
+				sizes.put(e.tagname, size + 1);
+			}
+			XMLElement[] children = e.children();
+			int k = children.length;
+			if (top + k >= todo.length) {
+				int size = Math.max(todo.length * 2, top + k + 1);
+				todo = Arrays.copyOf(todo, size);
+				todo_parent = Arrays.copyOf(todo_parent, size);
+				todo_seq = Arrays.copyOf(todo_seq, size);
+			}
+			/* push in reverse, so that the first child is numbered first */
+			for (int j = k - 1; j >= 0; j--) {
+				todo[++top] = children[j];
+				todo_parent[top] = n;
+				todo_seq[top] = j;
+			}
+			n++;
+		}
+
+		/* a subtree ends where the last subtree of its children ends */
+		int[] end = new int[n];
+		for (int i = n - 1; i >= 0; i--) {
+			if (end[i] == 0)
+				end[i] = i + 1;
+			if (parent[i] >= 0 && end[parent[i]] == 0)
+				end[parent[i]] = end[i];
+		}
+
+		Map<String, int[]> tags = new HashMap<>();
+		for (Map.Entry<String, int[]> entry : lists.entrySet())
+			tags.put(entry.getKey(), Arrays.copyOf(entry.getValue(), sizes.get(entry.getKey())));
+		SyntaxTreeIndex index = new SyntaxTreeIndex(root, Arrays.copyOf(elems, n), end, Arrays.copyOf(seq, n), tags);
+		for (int i = 0; i < n; i++) {
+			index.elems[i].index = index;
+			index.elems[i].preorder = i;
+		}
+		return index;
+	}
+
+	/**
+	 * The index attached to an element, if it is right for it
+	 *
+	 * @return the index, or null
+	 */
+	public static SyntaxTreeIndex of(XMLElement e) {
+		SyntaxTreeIndex index = e.index;
+		return index != null && e.preorder < index.elems.length && index.elems[e.preorder] == e ? index : null;
+	}
+
+	/** The root of the indexed tree. */
+	public XMLElement root() {
+		return root;
+	}
+
+	/** The number of indexed elements. */
+	public int size() {
+		return elems.length;
+	}
+
+	/**
+	 * Finds the elements of a tag in the subtree of an indexed element
+	 *
+	 * @param within the root of the subtree, an element of this index
+	 * @param tag    the tag
+	 * @return the elements in preorder, within itself included
+	 */
+	public List<XMLElement> select(XMLElement within, String tag) {
+		List<XMLElement> result = new ArrayList<>();
+		int[] list = tags.getOrDefault(tag, NONE);
+		int from = within.preorder, to = end[from];
+		for (int i = lowerBound(list, from); i < list.length && list[i] < to; i++)
+			result.add(elems[list[i]]);
+		return result;
+	}
+
+	/** The numbers of the elements of a tag. */
+	int[] list(String tag) {
+		return tags.getOrDefault(tag, NONE);
+	}
+
+	XMLElement element(int i) {
+		return elems[i];
+	}
+
+	int end(int i) {
+		return end[i];
+	}
+
+	int seq(int i) {
+		return seq[i];
+	}
+
+	/** The first position in a sorted list holding a number not below n. */
+	static int lowerBound(int[] list, int n) {
+		int lo = 0, hi = list.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (list[mid] < n)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,147 @@
+package java_cup.runtime;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Hash-consing of XMLElement trees: structurally identical subtrees are
+ * represented by a single element. Terminals are identical if they have the
+ * same tag and equal values, nonterminals if they have the same tag, variant
+ * and children. Locations are left out of the comparison, so a shared element
+ * keeps the locations of the first of its occurrences; sharing is meant for
+ * trees whose users do not need locations, such as trees of large generated
+ * inputs. Besides saving memory, shared trees let later passes memoize their
+ * results per element.
+ * <p>
+ *
+ * Elements are shared bottom-up, as they are built: the nonterminal children of
+ * a nonterminal must have been shared by the same table before, while terminal
+ * children are shared along with their parent. Parsers generated with
+ * -xmlactions do this for their parse tree when given a table:
+ * <code>
+ * parser.setTreeSharing(new SyntaxTreeSharing());
+ * XMLElement tree = (XMLElement) parser.parse().value;
+ * </code>
+ * A table may be used for several trees, but not by several threads at once.
+ */
+public class SyntaxTreeSharing {
+	/** The shared elements, in an open addressing hash table. */
+	private XMLElement[] table = new XMLElement[1024];
+	private int[] hashes = new int[1024];
+	private int size;
+
+	/**
+	 * Returns the shared element identical to the given one, making the given
+	 * one the shared element if there is none yet. Errors are not shared.
+	 *
+	 * @param e the element
+	 * @return the shared element
+	 */
+	public XMLElement share(XMLElement e) {
+		if (e instanceof XMLElement.Terminal)
+			return share((XMLElement.Terminal) e);
+		if (e instanceof XMLElement.NonTerminal)
+			return share((XMLElement.NonTerminal) e);
+		return e;
+	}
+
+	private XMLElement share(XMLElement.Terminal t) {
+		int h = hash(t);
+		int mask = table.length - 1;
+		int i = h & mask;
+		for (XMLElement s; (s = table[i]) != null; i = (i + 1) & mask)
+			if (hashes[i] == h && s instanceof XMLElement.Terminal && s.getTagId() == t.getTagId()
+					&& Objects.equals(((XMLElement.Terminal) s).value, t.value))
+				return s;
+		return add(i, h, t);
+	}
+
+	private XMLElement share(XMLElement.NonTerminal n) {
+		XMLElement[] children = n.children(), shared = null;
+		for (int j = 0; j < children.length; j++)
+			if (children[j] instanceof XMLElement.Terminal) {
+				XMLElement c = share((XMLElement.Terminal) children[j]);
+				if (c != children[j]) {
+					if (shared == null)
+						shared = children.clone();
+					shared[j] = c;
+				}
+			}
+		if (shared != null)
+			children = shared;
+		int h = hash(n.getTagId(), n.getVariant(), children);
+		int mask = table.length - 1;
+		int i = h & mask;
+		for (XMLElement s; (s = table[i]) != null; i = (i + 1) & mask)
+			if (hashes[i] == h && s instanceof XMLElement.NonTerminal && s.getTagId() == n.getTagId()
+					&& ((XMLElement.NonTerminal) s).getVariant() == n.getVariant()
+					&& same(((XMLElement.NonTerminal) s).children(), children))
+				return s;
+		return add(i, h, shared == null ? n : new XMLElement.NonTerminal(n.getTagId(), n.getVariant(), shared));
+	}
+
+	private XMLElement add(int i, int h, XMLElement e) {
+		table[i] = e;
+		hashes[i] = h;
+		if (++size * 2 > table.length)
+			grow();
+		return e;
+	}
+
+	private void grow() {
+		XMLElement[] old = table;
+		int[] old_hashes = hashes;
+		table = new XMLElement[old.length * 2];
+		hashes = new int[old.length * 2];
+		int mask = table.length - 1;
+		for (int j = 0; j < old.length; j++)
+			if (old[j] != null) {
+				int i = old_hashes[j] & mask;
+				while (table[i] != null)
+					i = (i + 1) & mask;
+				table[i] = old[j];
+				hashes[i] = old_hashes[j];
+			}
+	}
+
+	private static boolean same(XMLElement[] a, XMLElement[] b) {
+		if (a.length != b.length)
+			return false;
+		for (int i = 0; i < a.length; i++)
+			if (a[i] != b[i])
+				return false;
+		return true;
+	}
+
+	private static int hash(XMLElement.Terminal t) {
+		return mix(t.getTagId() * 31 + Objects.hashCode(t.value));
+	}
+
+	private static int hash(int tag, int variant, XMLElement[] children) {
+		int h = tag * 31 + variant + 1;
+		for (XMLElement c : children)
+			h = h * 31 + System.identityHashCode(c);
+		return mix(h);
+	}
+
+	/** Spreads the bits of a hash over the table slots. */
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * The number of shared elements.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Forgets the shared elements.
+	 */
+	public void clear() {
+		Arrays.fill(table, null);
+		size = 0;
+	}
+}
@@ -1,105 +1,256 @@
 package java_cup.runtime;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Stack;
+import java.util.Set;
 
 public class SyntaxTreeTransform {
-	private static final XMLElement[] X = new XMLElement[0];
+	/**
+	 * A rewrite of nonterminals, run bottom-up by a Pipeline.
+	 */
+	public static interface Rewrite {
+		/**
+		 * Rewrites a nonterminal in place
+		 *
+		 * @param node the nonterminal, its children already rewritten by all
+		 *             rewrites of the pipeline, and the nonterminal itself by the
+		 *             rewrites before this one
+		 */
+		public void rewrite(Node node);
+	}
 
-	private static class ListFlattener extends SyntaxTreeDFS.AbstractVisitor {
-		private List<String> name;
+	/**
+	 * The nonterminal a Rewrite works on. The node is changed in place, and an
+	 * element is only built for it once all rewrites are done; if they leave
+	 * it as it was, the original element is kept, so that unchanged subtrees are
+	 * shared between the input and the result.
+	 */
+	public static final class Node {
+		private XMLElement.NonTerminal element;
+		private String tagname;
+		private int variant;
+		/** The children are buffer[from] to buffer[from + size - 1]. */
+		private XMLElement[] buffer = new XMLElement[64];
+		private int from, size;
+		private XMLElement replacement;
 
-		public ListFlattener(String... name) {
-			super();
-			this.name = Arrays.asList(name);
+		private Node() {
 		}
 
-		public XMLElement root() {
-			System.out.println(stack.size() + " - " + intstack.size());
-			return stack.pop();
+		/** The original nonterminal. */
+		public XMLElement.NonTerminal element() {
+			return element;
 		}
 
-		private Stack<XMLElement> stack = new Stack<>();
-		private Stack<Integer> intstack = new Stack<>();
+		public String getTagname() {
+			return tagname;
+		}
 
-		@Override
-		public void defaultPre(XMLElement element, List<XMLElement> children) {
-			intstack.push(children.size());
+		public void setTagname(String tagname) {
+			this.tagname = tagname;
 		}
 
-		@Override
-		public void defaultPost(XMLElement element, List<XMLElement> children) {
-			int n = intstack.pop();
-			if (n > 0) {
-				outer: do {
-					if (name.contains(element.getTagname()))
-						for (XMLElement e : children)
-							if (e.getTagname().equals(element.getTagname())) {
-								break outer;
-							}
-					LinkedList<XMLElement> elems = new LinkedList<>();
-					while (n-- > 0)
-						elems.addFirst(stack.pop());
-					stack.push(new XMLElement.NonTerminal(element.getTagname(), 0, elems.toArray(X)));
-					System.out.println("  doch noch: ");
-					return;
-				} while (false);
-				LinkedList<XMLElement> elems = new LinkedList<>();
-				while (n-- > 0) {
-					elems.addFirst(stack.pop());
-				}
-				stack.addAll(elems);
-				intstack.push(intstack.pop() + n - 1);
-			}
-			if (n == 0) {
-				stack.push(element);
-			}
+		public int getVariant() {
+			return variant;
 		}
 
-	}
+		public void setVariant(int variant) {
+			this.variant = variant;
+		}
 
-	public static XMLElement flattenLists(XMLElement elem, String... names) {
-		ListFlattener cr = new ListFlattener(names);
-		SyntaxTreeDFS.dfs(elem, cr);
-		return cr.root();
+		public int size() {
+			return size;
+		}
+
+		public XMLElement child(int i) {
+			if (i < 0 || i >= size)
+				throw new IndexOutOfBoundsException(i + "");
+			return buffer[from + i];
+		}
+
+		public void setChild(int i, XMLElement e) {
+			if (i < 0 || i >= size)
+				throw new IndexOutOfBoundsException(i + "");
+			buffer[from + i] = e;
+		}
+
+		/**
+		 * Replaces the i-th child by the given elements
+		 */
+		public void splice(int i, List<XMLElement> elems) {
+			if (i < 0 || i >= size)
+				throw new IndexOutOfBoundsException(i + "");
+			int n = elems.size();
+			ensure(from + size + n);
+			System.arraycopy(buffer, from + i + 1, buffer, from + i + n, size - i - 1);
+			for (int j = 0; j < n; j++)
+				buffer[from + i + j] = elems.get(j);
+			size += n - 1;
+		}
+
+		/**
+		 * Replaces the whole nonterminal by the given element, which the
+		 * remaining rewrites do not see.
+		 */
+		public void replaceWith(XMLElement e) {
+			replacement = e;
+		}
+
+		private void ensure(int n) {
+			if (n > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, n));
+		}
+
+		/** Appends a rewritten element to the children being collected. */
+		private void push(int top, XMLElement e) {
+			ensure(top + 1);
+			buffer[top] = e;
+		}
+
+		/** Builds the element for the node. */
+		private XMLElement result() {
+			if (replacement != null)
+				return replacement;
+			boolean same = tagname.equals(element.tagname) && variant == element.getVariant();
+			List<XMLElement> children = element.getChildren();
+			if (same && size == children.size())
+				for (int i = 0; same && i < size; i++)
+					same = buffer[from + i] == children.get(i);
+			else
+				same = false;
+			if (same)
+				return element;
+			return new XMLElement.NonTerminal(tagname, variant, Arrays.copyOfRange(buffer, from, from + size));
+		}
 	}
 
-	private static class ChainRemover extends SyntaxTreeDFS.AbstractVisitor {
-		public XMLElement root() {
-			return stack.pop();
+	/**
+	 * A sequence of rewrites, run together in a single bottom-up traversal. On
+	 * each nonterminal, the rewrites are run in the order they were added,
+	 * after all of them were run on its children. Terminals and errors are
+	 * kept as they are.
+	 * <p>
+	 *
+	 * Example: <code>
+	 * XMLElement tree = new SyntaxTreeTransform.Pipeline()
+	 *     .flattenLists("translation_unit").removeUnaryChains().apply(root);
+	 * </code>
+	 */
+	public static class Pipeline {
+		private final List<Rewrite> rewrites = new ArrayList<>();
+
+		public Pipeline add(Rewrite rewrite) {
+			rewrites.add(rewrite);
+			return this;
 		}
 
-		private Stack<XMLElement> stack = new Stack<XMLElement>();
+		/**
+		 * Adds a rewrite replacing the children of the nonterminals with the given
+		 * tags that have the same tag as their parent by their own children
+		 */
+		public Pipeline flattenLists(String... names) {
+			return add(new ListFlattener(names));
+		}
+
+		/**
+		 * Adds a rewrite replacing nonterminals with a single child by the child
+		 */
+		public Pipeline removeUnaryChains() {
+			return add(new ChainRemover());
+		}
+
+		/**
+		 * Runs the rewrites on a tree. The result is indexed if the tree was, see
+		 * SyntaxTreeIndex.
+		 *
+		 * @param elem the root of the tree, which is not changed
+		 * @return the root of the rewritten tree
+		 */
+		public XMLElement apply(XMLElement elem) {
+			Rewrite[] all = rewrites.toArray(new Rewrite[0]);
+			Node node = new Node();
+			SyntaxTreeDFS.dfs(elem, new SyntaxTreeDFS.Visitor() {
+				/** The start of the rewritten children of the open nonterminals. */
+				private int[] marks = new int[64];
+				private int depth, top;
+
+				@Override
+				public void preVisit(XMLElement element) {
+					if (depth == marks.length)
+						marks = Arrays.copyOf(marks, depth * 2);
+					marks[depth++] = top;
+				}
+
+				@Override
+				public void postVisit(XMLElement element) {
+					int mark = marks[--depth];
+					XMLElement result = element;
+					if (element instanceof XMLElement.NonTerminal) {
+						node.element = (XMLElement.NonTerminal) element;
+						node.tagname = element.tagname;
+						node.variant = node.element.getVariant();
+						node.from = mark;
+						node.size = top - mark;
+						node.replacement = null;
+						for (int i = 0; node.replacement == null && i < all.length; i++)
+							all[i].rewrite(node);
+						result = node.result();
+						Arrays.fill(node.buffer, mark, mark + node.size, null);
+						node.element = null;
+					}
+					node.push(mark, result);
+					top = mark + 1;
+				}
+			});
+			XMLElement result = node.buffer[0];
+			if (SyntaxTreeIndex.of(elem) != null)
+				SyntaxTreeIndex.build(result);
+			return result;
+		}
+	}
+
+	private static class ListFlattener implements Rewrite {
+		private final Set<String> names;
+
+		ListFlattener(String... names) {
+			this.names = new HashSet<>(Arrays.asList(names));
+		}
 
 		@Override
-		public void defaultPost(XMLElement arg0, List<XMLElement> arg1) {
-			int n = arg1.size();
-			if (n > 1) {
-				LinkedList<XMLElement> elems = new LinkedList<>();
-				while (n-- > 0)
-					elems.addFirst(stack.pop());
-				XMLElement.NonTerminal non = (XMLElement.NonTerminal) arg0;
-				XMLElement ne = new XMLElement.NonTerminal(arg0.getTagname(), non.getVariant(), elems.toArray(X));
-				stack.push(ne);
+		public void rewrite(Node node) {
+			if (!names.contains(node.getTagname()))
 				return;
+			for (int i = node.size() - 1; i >= 0; i--) {
+				XMLElement child = node.child(i);
+				if (child instanceof XMLElement.NonTerminal && node.getTagname().equals(child.getTagname()))
+					node.splice(i, child.getChildren());
 			}
-			// if (n==1){}
-			if (n == 0)
-				stack.push(arg0);
 		}
+	}
 
+	private static class ChainRemover implements Rewrite {
 		@Override
-		public void defaultPre(XMLElement arg0, List<XMLElement> arg1) {
+		public void rewrite(Node node) {
+			if (node.size() == 1)
+				node.replaceWith(node.child(0));
 		}
+	}
 
+	/**
+	 * Replaces the children of the nonterminals with the given tags that have
+	 * the same tag as their parent by their own children, so that recursive
+	 * lists become a single nonterminal.
+	 */
+	public static XMLElement flattenLists(XMLElement elem, String... names) {
+		return new Pipeline().flattenLists(names).apply(elem);
 	}
 
+	/**
+	 * Replaces the nonterminals with a single child by the child.
+	 */
 	public static XMLElement removeUnaryChains(XMLElement elem) {
-		ChainRemover cr = new ChainRemover();
-		SyntaxTreeDFS.dfs(elem, cr);
-		return cr.root();
+		return new Pipeline().removeUnaryChains().apply(elem);
 	}
-
 }
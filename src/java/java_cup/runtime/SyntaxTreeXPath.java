@@ -1,94 +1,242 @@
 package java_cup.runtime;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SyntaxTreeXPath {
+	/** Number of compiled queries kept by query(). */
+	private static final int CACHE_SIZE = 256;
+
+	/** Recently used compiled queries, least recently used first. */
+	private static final Map<String, Query> cache = new LinkedHashMap<String, Query>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
 	public static List<XMLElement> query(String query, XMLElement element) {
+		Query q;
+		synchronized (cache) {
+			q = cache.get(query);
+			if (q == null) {
+				q = compile(query);
+				cache.put(query, q);
+			}
+		}
+		return q.evaluate(element);
+	}
+
+	/**
+	 * Compiles a query. A query is a list of steps separated by "/", the first
+	 * of which is matched against the element the query is evaluated on. A step
+	 * preceded by "//" matches the element it is applied to or its descendants,
+	 * not looking further down into matching elements. A step is a tag, in which
+	 * "*" matches any text, followed by predicates: "[@variant=n]" for the
+	 * variant of a nonterminal and "[n]" for the position among its siblings.
+	 *
+	 * @param query the query
+	 * @return the compiled query, which may be evaluated on many trees and by
+	 *         many threads
+	 */
+	public static Query compile(String query) {
 		if (query.startsWith("/"))
 			query = query.substring(1);
-		return query0(new LinkedList<>(Arrays.asList(query.split("/"))), 0, element, 0);
+		String[] q = query.split("/");
+		List<Step> steps = new ArrayList<>();
+		boolean descendant = false;
+		for (String s : q) {
+			if (s.isEmpty() && !descendant)
+				descendant = true;
+			else {
+				steps.add(new Step(s, descendant));
+				descendant = false;
+			}
+		}
+		return new Query(steps.toArray(new Step[0]));
 	}
 
-	private static List<XMLElement> query0(List<String> q, int idx, XMLElement element, int seq) {
+	/**
+	 * A compiled query, see compile().
+	 */
+	public static final class Query {
+		private final Step[] steps;
 
-		if (q.get(idx).isEmpty()) { // match deeper descendant q[1]
-			return matchDeeperDescendant(q, idx + 1, element, seq);
+		private Query(Step[] steps) {
+			this.steps = steps;
 		}
-		List<XMLElement> l = new LinkedList<>();
 
-		if (!match(q.get(idx), element, seq))
-			return new LinkedList<>();
-		if (q.size() - 1 == idx)
-			return singleton(element);
-		List<XMLElement> children = element.getChildren();
-		for (int i = 0; i < children.size(); i++) {
-			XMLElement child = children.get(i);
-			l.addAll(query0(q, idx + 1, child, i));
+		/**
+		 * Evaluates the query
+		 *
+		 * @param element the element matched by the first step
+		 * @return the matching elements, in document order
+		 */
+		public List<XMLElement> evaluate(XMLElement element) {
+			List<XMLElement> result = new ArrayList<>();
+			evaluate(element, result);
+			return result;
 		}
-		return l;
-	}
 
-	private static List<XMLElement> matchDeeperDescendant(List<String> query, int idx, XMLElement element, int seq) {
-		if (query.size() <= idx)
-			return singleton(element);
-		boolean matches = match(query.get(idx), element, seq);
-		List<XMLElement> l = new LinkedList<>();
-		List<XMLElement> children = element.getChildren();
-		if (matches)
-			return query0(query, idx, element, seq);
-		for (int i = 0; i < children.size(); i++) {
-			XMLElement child = children.get(i);
-			l.addAll(matchDeeperDescendant(query, idx, child, i));
+		/**
+		 * Evaluates the query, adding the matching elements to the given list in
+		 * document order
+		 *
+		 * @param element the element matched by the first step
+		 * @param result  the list to add to
+		 */
+		public void evaluate(XMLElement element, List<? super XMLElement> result) {
+			if (steps.length == 0)
+				return;
+			/*
+			 * pending matches of a step against an element; a negative step means that
+			 * the element's descendants are searched for it as well
+			 */
+			XMLElement[] elems = new XMLElement[64];
+			int[] stepno = new int[64], seqs = new int[64];
+			/* the topmost matches taken from an index */
+			int[] found = new int[16];
+			int top = 0;
+			elems[0] = element;
+			stepno[0] = steps[0].descendant ? -1 : 0;
+			while (top >= 0) {
+				XMLElement e = elems[top];
+				int i = stepno[top], seq = seqs[top];
+				elems[top--] = null;
+				boolean deeper = i < 0;
+				if (deeper) {
+					i = -i - 1;
+					SyntaxTreeIndex index = steps[i].wildcard || steps[i].tag == null ? null : SyntaxTreeIndex.of(e);
+					if (index != null) {
+						/*
+						 * take the topmost matches in the subtree from the index and push
+						 * them in reverse as matches of the step alone
+						 */
+						int[] list = index.list(steps[i].tag[0]);
+						int from = SyntaxTreeIndex.lowerBound(list, e.preorder), to = index.end(e.preorder);
+						int count = 0, covered = -1;
+						for (int j = from; j < list.length && list[j] < to; j++) {
+							int c = list[j];
+							int s = c == e.preorder ? seq : index.seq(c);
+							if (c >= covered && steps[i].matches(index.element(c), s)) {
+								if (count == found.length)
+									found = Arrays.copyOf(found, count * 2);
+								found[count++] = c;
+								covered = index.end(c);
+							}
+						}
+						if (top + count >= elems.length) {
+							int size = Math.max(elems.length * 2, top + count + 1);
+							elems = Arrays.copyOf(elems, size);
+							stepno = Arrays.copyOf(stepno, size);
+							seqs = Arrays.copyOf(seqs, size);
+						}
+						for (int j = count - 1; j >= 0; j--) {
+							int c = found[j];
+							elems[++top] = index.element(c);
+							stepno[top] = i;
+							seqs[top] = c == e.preorder ? seq : index.seq(c);
+						}
+						continue;
+					}
+				}
+				int next;
+				if (steps[i].matches(e, seq)) {
+					if (i == steps.length - 1) {
+						result.add(e);
+						continue;
+					}
+					next = steps[i + 1].descendant ? -(i + 1) - 1 : i + 1;
+				} else if (deeper)
+					next = -i - 1;
+				else
+					continue;
+				XMLElement[] children = e.children();
+				int n = children.length;
+				if (top + n >= elems.length) {
+					int size = Math.max(elems.length * 2, top + n + 1);
+					elems = Arrays.copyOf(elems, size);
+					stepno = Arrays.copyOf(stepno, size);
+					seqs = Arrays.copyOf(seqs, size);
+				}
+				/* push in reverse, so that the first child is done first */
+				for (int j = n - 1; j >= 0; j--) {
+					elems[++top] = children[j];
+					stepno[top] = next;
+					seqs[top] = j;
+				}
+			}
 		}
-		return l;
 	}
 
-	private static boolean match(String m, XMLElement elem, int seq) {
-		// System.out.println("Matching "+elem.tagname+" with "+m);
-		boolean result = true;
-		String[] name = m.split("\\[");
-		String[] tag = name[0].split("\\*");
-		if (tag[0].isEmpty()) { // start is wildcard
-			if (tag.length > 2)
-				result &= elem.tagname.contains(tag[1]);
-			else if (tag.length == 2)
-				result &= elem.tagname.endsWith(tag[1]);
-			else
-				result &= false;
-		} else { // match with start
-			if (tag.length == 2)
-				result &= elem.tagname.startsWith(tag[1]);
-			else
-				result = elem.tagname.equals(tag[0]);
-		}
-		for (int i = 1; i < name.length; i++) {
-			String predicate = name[i];
-			if (!predicate.endsWith("]"))
-				return false;
-			predicate = predicate.substring(0, predicate.length() - 1);
+	/** A step of a compiled query. */
+	private static final class Step {
+		final boolean descendant;
+		/** The parts of the tag between "*"s, or null if the step never matches. */
+		final String[] tag;
+		final boolean wildcard;
+		/** The variant and position demanded, or -1. */
+		final int variant, position;
 
-			if (predicate.startsWith("@")) {
-				if (predicate.substring(1).startsWith("variant"))
-					if ((elem instanceof XMLElement.NonTerminal)
-							&& Integer.parseInt(predicate.substring(9)) == ((XMLElement.NonTerminal) elem).getVariant())
-						result &= true;
+		Step(String s, boolean descendant) {
+			this.descendant = descendant;
+			int variant = -1, position = -1;
+			String[] name = s.split("\\[");
+			boolean valid = !name[0].isEmpty();
+			for (int i = 1; valid && i < name.length; i++) {
+				String predicate = name[i];
+				if (!predicate.endsWith("]")) {
+					valid = false;
+					break;
+				}
+				predicate = predicate.substring(0, predicate.length() - 1);
+				try {
+					if (predicate.startsWith("@variant="))
+						variant = Integer.parseInt(predicate.substring(9));
+					else if (predicate.matches("\\d+"))
+						position = Integer.parseInt(predicate);
 					else
-						return false;
-				else
-					return false;
-			} else if (predicate.matches("\\d+")) {
-				result &= Integer.parseInt(predicate) == seq;
-			} else
-				return false; // submatch
+						valid = false;
+				} catch (NumberFormatException e) {
+					valid = false;
+				}
+			}
+			this.tag = valid ? name[0].split("\\*", -1) : null;
+			this.wildcard = tag != null && tag.length > 1;
+			this.variant = variant;
+			this.position = position;
 		}
-		return result;
-	}
 
-	private static List<XMLElement> singleton(XMLElement elem) {
-		LinkedList<XMLElement> l = new LinkedList<>();
-		l.add(elem);
-		return l;
+		boolean matches(XMLElement e, int seq) {
+			String t = e.tagname;
+			if (tag == null || t == null)
+				return false;
+			if (!wildcard) {
+				if (!t.equals(tag[0]))
+					return false;
+			} else {
+				int last = tag.length - 1;
+				if (!t.startsWith(tag[0]) || !t.endsWith(tag[last])
+						|| t.length() < tag[0].length() + tag[last].length())
+					return false;
+				int from = tag[0].length(), to = t.length() - tag[last].length();
+				for (int i = 1; i < last; i++) {
+					int at = t.indexOf(tag[i], from);
+					if (at < 0 || at + tag[i].length() > to)
+						return false;
+					from = at + tag[i].length();
+				}
+			}
+			if (position >= 0 && position != seq)
+				return false;
+			if (variant >= 0)
+				return e instanceof XMLElement.NonTerminal && ((XMLElement.NonTerminal) e).getVariant() == variant;
+			return true;
+		}
 	}
 }
@@ -0,0 +1,138 @@
+package java_cup.runtime;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An append-only buffer of Symbols, stored in fixed size array chunks and
+ * addressed by the index a Symbol got when it was added. Leading chunks can be
+ * released once their Symbols are no longer needed, the indices of the
+ * remaining Symbols stay the same.
+ */
+public class TokenBuffer {
+	/** Number of Symbols per chunk, a power of two. */
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/** The chunks, the first live one at <code>chunks[head]</code>. */
+	private Symbol[][] chunks = new Symbol[4][];
+	/** Index into chunks of the first live chunk. */
+	private int head;
+	/** Number of live chunks. */
+	private int count;
+	/** Index of the first Symbol in the first live chunk. */
+	private int base;
+	/** Index of the first Symbol that was not released. */
+	private int first;
+	/** Index the next Symbol gets. */
+	private int size;
+
+	/**
+	 * Append a Symbol.
+	 *
+	 * @param s the Symbol to append
+	 * @return the index of the Symbol
+	 */
+	public int add(Symbol s) {
+		int offset = size - base;
+		if (offset == count << CHUNK_BITS) {
+			if (head + count == chunks.length) {
+				if (count * 2 <= chunks.length) {
+					/* slide the live chunks to the front */
+					System.arraycopy(chunks, head, chunks, 0, count);
+					Arrays.fill(chunks, count, chunks.length, null);
+				} else
+					chunks = Arrays.copyOfRange(chunks, head, head + chunks.length * 2);
+				head = 0;
+			}
+			chunks[head + count++] = new Symbol[CHUNK_SIZE];
+		}
+		chunks[head + (offset >> CHUNK_BITS)][offset & CHUNK_MASK] = s;
+		return size++;
+	}
+
+	/**
+	 * Access a Symbol by its index.
+	 *
+	 * @param index the index the Symbol got when added
+	 * @return the Symbol
+	 * @throws IndexOutOfBoundsException if the index was not given out yet or the
+	 *                                   Symbol was released
+	 */
+	public Symbol get(int index) {
+		if (index < first || index >= size)
+			throw new IndexOutOfBoundsException("Token " + index + " not in [" + first + ", " + size + ")");
+		int offset = index - base;
+		return chunks[head + (offset >> CHUNK_BITS)][offset & CHUNK_MASK];
+	}
+
+	/**
+	 * Number of Symbols ever added, this is the index the next Symbol gets.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Index of the first Symbol that was not released.
+	 */
+	public int first() {
+		return first;
+	}
+
+	/**
+	 * Release all Symbols with an index below the given one. Chunks are dropped
+	 * once all of their Symbols are released.
+	 *
+	 * @param index the index of the first Symbol to keep
+	 */
+	public void release(int index) {
+		if (index > size)
+			index = size;
+		if (index <= first)
+			return;
+		first = index;
+		while (count > 0 && base + CHUNK_SIZE <= first) {
+			chunks[head++] = null;
+			count--;
+			base += CHUNK_SIZE;
+		}
+		if (count == 0)
+			head = 0;
+	}
+
+	/**
+	 * Release all Symbols.
+	 */
+	public void clear() {
+		release(size);
+	}
+
+	/**
+	 * Read-only view of the Symbols that were not released. Index 0 of the view
+	 * is the Symbol with index <code>first()</code>. The view follows the buffer,
+	 * so it must not be kept across a release.
+	 *
+	 * @return an unmodifiable list of the live Symbols
+	 */
+	public List<Symbol> asList() {
+		return new View();
+	}
+
+	private class View extends AbstractList<Symbol> implements RandomAccess {
+		@Override
+		public Symbol get(int index) {
+			if (index < 0)
+				throw new IndexOutOfBoundsException("Index: " + index);
+			return TokenBuffer.this.get(first + index);
+		}
+
+		@Override
+		public int size() {
+			return size - first;
+		}
+	}
+}
@@ -1,9 +1,13 @@
 package java_cup.runtime;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
@@ -20,6 +24,15 @@ public abstract class XMLElement {
 
 	public static void dump(ScannerBuffer buffer, XMLStreamWriter writer, XMLElement elem, String... blacklist)
 			throws XMLStreamException {
+		dumpStart(writer, blacklist);
+		elem.dump(writer);
+		dumpEnd(buffer, writer);
+	}
+
+	/**
+	 * Writes the start of the document, up to the parse tree
+	 */
+	static void dumpStart(XMLStreamWriter writer, String... blacklist) throws XMLStreamException {
 		writer.writeStartDocument("utf-8", "1.0");
 		writer.writeProcessingInstruction("xml-stylesheet", "href=\"tree.xsl\" type=\"text/xsl\"");
 		writer.writeStartElement("document");
@@ -35,12 +48,20 @@ public abstract class XMLElement {
 		}
 
 		writer.writeStartElement("parsetree");
-		elem.dump(writer);
+	}
+
+	/**
+	 * Writes the end of the document, after the parse tree, and closes the
+	 * writer
+	 */
+	static void dumpEnd(ScannerBuffer buffer, XMLStreamWriter writer) throws XMLStreamException {
 		writer.writeEndElement();
 
 		if (buffer != null) {
 			writer.writeStartElement("tokensequence");
-			for (Symbol s : buffer.getBuffered()) {
+			TokenBuffer tokens = buffer.getTokens();
+			for (int i = tokens.first(), n = tokens.size(); i < n; i++) {
+				Symbol s = tokens.get(i);
 				if (s instanceof ComplexSymbol) {
 					ComplexSymbol cs = (ComplexSymbol) s;
 					if (cs.value != null) {
@@ -73,6 +94,90 @@ public abstract class XMLElement {
 
 	protected String tagname;
 
+	/** The id of tagname, or -1 if it was not looked up yet. */
+	int tagid = -1;
+
+	/** Interned tags: the ids of the tags, and the tags by id. */
+	private static final Map<String, Integer> tag_ids = new ConcurrentHashMap<>();
+	private static volatile String[] tag_names = new String[64];
+
+	/**
+	 * Interns a tag. Tags get dense ids from 0 in the order they are interned,
+	 * and keep them for the lifetime of the class.
+	 * <p>
+	 *
+	 * The ids are shared by the whole JVM, so that a visitor registered by tag
+	 * name dispatches on the elements of any parser. The table only grows: the
+	 * tags of the generated parsers are bounded by their grammars, but interning
+	 * tags made up at runtime keeps every one of them. Looking up a known tag
+	 * takes no lock; the first intern of a tag locks the table.
+	 *
+	 * @param tagname the tag
+	 * @return the id of the tag
+	 */
+	public static int tagId(String tagname) {
+		Integer id = tag_ids.get(tagname);
+		if (id != null)
+			return id;
+		synchronized (tag_ids) {
+			id = tag_ids.get(tagname);
+			if (id == null) {
+				id = tag_ids.size();
+				String[] names = tag_names;
+				if (id == names.length)
+					names = Arrays.copyOf(names, id * 2);
+				names[id] = tagname;
+				/* publish the name before the id, for the lookups without lock */
+				tag_names = names;
+				tag_ids.put(tagname, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Interns several tags, see tagId(String)
+	 */
+	public static int[] tagIds(String... tagnames) {
+		int[] ids = new int[tagnames.length];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = tagId(tagnames[i]);
+		return ids;
+	}
+
+	/**
+	 * The tag with the given id
+	 */
+	public static String tagName(int id) {
+		return tag_names[id];
+	}
+
+	/**
+	 * The number of interned tags; all ids are below it.
+	 */
+	public static int tagCount() {
+		return tag_ids.size();
+	}
+
+	/**
+	 * The id of the tag, for dispatching on it through arrays. Parsers generated
+	 * with -xmlactions set it when they build the element, other elements intern
+	 * their tag on the first call.
+	 *
+	 * @return the id, or -1 if the element has no tag
+	 */
+	public int getTagId() {
+		int id = tagid;
+		if (id < 0 && tagname != null)
+			tagid = id = tagId(tagname);
+		return id;
+	}
+
+	/** The index of the tree, see SyntaxTreeIndex. */
+	SyntaxTreeIndex index;
+	/** The number of this element in the index. */
+	int preorder;
+
 	public String getTagname() {
 		return tagname;
 	}
@@ -83,10 +188,47 @@ public abstract class XMLElement {
 
 	protected abstract void dump(XMLStreamWriter writer) throws XMLStreamException;
 
+	/**
+	 * Writes the same text as toString() to the given Appendable. The elements
+	 * of this package write it without building it in memory first; by default
+	 * it is the text of toString(), so subclasses elsewhere keep working.
+	 *
+	 * @param out the destination
+	 * @throws IOException if out throws it
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		out.append(toString());
+	}
+
+	/**
+	 * Builds the text of an element whose toString() is written by appendTo().
+	 */
+	static String text(XMLElement e) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			e.appendTo(sb);
+		} catch (IOException x) {
+			throw new UncheckedIOException(x);
+		}
+		return sb.toString();
+	}
+
 	public List<XMLElement> getChildren() {
-		return new LinkedList<>();
+		return Collections.emptyList();
 	};
 
+	/** No children. */
+	static final XMLElement[] NONE = new XMLElement[0];
+
+	/**
+	 * The children, for the walks of this package; NonTerminal hands out its
+	 * array, not to be changed, instead of allocating a view.
+	 */
+	XMLElement[] children() {
+		List<XMLElement> l = getChildren();
+		return l.isEmpty() ? NONE : l.toArray(NONE);
+	}
+
 	public boolean hasChildren() {
 		return false;
 	};
@@ -94,20 +236,30 @@ public abstract class XMLElement {
 	public static class NonTerminal extends XMLElement {
 		@Override
 		public boolean hasChildren() {
-			return !list.isEmpty();
+			return children.length > 0;
 		}
 
+		/**
+		 * Returns an unmodifiable view of the children.
+		 */
 		@Override
 		public List<XMLElement> getChildren() {
-			return list;
+			return Collections.unmodifiableList(Arrays.asList(children));
 		}
 
+		/**
+		 * Returns the elements with the given tag in preorder, looking them up in
+		 * the index of the tree if it has one.
+		 */
 		@Override
 		public List<XMLElement> selectById(String s) {
+			SyntaxTreeIndex index = SyntaxTreeIndex.of(this);
+			if (index != null)
+				return index.select(this, s);
 			LinkedList<XMLElement> response = new LinkedList<>();
 			if (tagname.equals(s))
 				response.add(this);
-			for (XMLElement e : list) {
+			for (XMLElement e : children) {
 				List<XMLElement> selection = e.selectById(s);
 				response.addAll(selection);
 			}
@@ -120,44 +272,67 @@ public abstract class XMLElement {
 			return variant;
 		}
 
-		LinkedList<XMLElement> list;
+		private final XMLElement[] children;
+
+		/** The children themselves, not to be changed. */
+		@Override
+		XMLElement[] children() {
+			return children;
+		}
+
+		/** The span, taken from the first and last child that have one. */
+		private final Location left, right;
+
+		/**
+		 * Creates a nonterminal with an interned tag, see tagId()
+		 */
+		public NonTerminal(int tagid, int variant, XMLElement... l) {
+			this(tagName(tagid), variant, l);
+			this.tagid = tagid;
+		}
 
 		public NonTerminal(String tagname, int variant, XMLElement... l) {
 			this.tagname = tagname;
 			this.variant = variant;
-			list = new LinkedList<>(Arrays.asList(l));
+			children = l.clone();
+			Location loc = null;
+			for (int i = 0; loc == null && i < children.length; i++)
+				loc = children[i].left();
+			left = loc;
+			loc = null;
+			for (int i = children.length - 1; loc == null && i >= 0; i--)
+				loc = children[i].right();
+			right = loc;
 		}
 
 		@Override
 		public Location left() {
-			for (XMLElement e : list) {
-				Location loc = e.left();
-				if (loc != null)
-					return loc;
-			}
-			return null;
+			return left;
 		}
 
 		@Override
 		public Location right() {
-			for (Iterator<XMLElement> it = list.descendingIterator(); it.hasNext();) {
-				Location loc = it.next().right();
-				if (loc != null)
-					return loc;
-			}
-			return null;
+			return right;
 		}
 
 		@Override
 		public String toString() {
-			if (list.isEmpty()) {
-				return "<nonterminal id=\"" + tagname + "\" variant=\"" + variant + "\" />";
+			return text(this);
+		}
+
+		@Override
+		public void appendTo(Appendable out) throws IOException {
+			if (children.length == 0) {
+				out.append("<nonterminal id=\"").append(tagname).append("\" variant=\"").append(String.valueOf(variant))
+						.append("\" />");
+				return;
 			}
-			String ret = "<nonterminal id=\"" + tagname + "\" left=\"" + left() + "\" right=\"" + right()
-					+ "\" variant=\"" + variant + "\">";
-			for (XMLElement e : list)
-				ret += e.toString();
-			return ret + "</nonterminal>";
+			out.append("<nonterminal id=\"").append(tagname).append("\" left=\"").append(String.valueOf(left))
+					.append("\" right=\"").append(String.valueOf(right)).append("\" variant=\"")
+					.append(String.valueOf(variant)).append("\">");
+			for (XMLElement e : children)
+				e.appendTo(out);
+			out.append("</nonterminal>");
 		}
 
 		@Override
@@ -165,16 +340,12 @@ public abstract class XMLElement {
 			writer.writeStartElement("nonterminal");
 			writer.writeAttribute("id", tagname);
 			writer.writeAttribute("variant", variant + "");
-			// if (!list.isEmpty()){
-			Location loc = left();
-			if (loc != null)
-				loc.toXML(writer, "left");
-			// }
-			for (XMLElement e : list)
+			if (left != null)
+				left.toXML(writer, "left");
+			for (XMLElement e : children)
 				e.dump(writer);
-			loc = right();
-			if (loc != null)
-				loc.toXML(writer, "right");
+			if (right != null)
+				right.toXML(writer, "right");
 			writer.writeEndElement();
 		}
 	}
@@ -209,7 +380,13 @@ public abstract class XMLElement {
 
 		@Override
 		public String toString() {
-			return "<error left=\"" + l + "\" right=\"" + r + "\"/>";
+			return text(this);
+		}
+
+		@Override
+		public void appendTo(Appendable out) throws IOException {
+			out.append("<error left=\"").append(String.valueOf(l)).append("\" right=\"").append(String.valueOf(r))
+					.append("\"/>");
 		}
 
 		@Override
@@ -243,6 +420,14 @@ public abstract class XMLElement {
 			this(l, symbolname, null, r);
 		}
 
+		/**
+		 * Creates a terminal with an interned tag, see tagId()
+		 */
+		public Terminal(Location l, int tagid, Object i, Location r) {
+			this(l, tagName(tagid), i, r);
+			this.tagid = tagid;
+		}
+
 		public Terminal(Location l, String symbolname, Object i, Location r) {
 			this.l = l;
 			this.r = r;
@@ -266,9 +451,17 @@ public abstract class XMLElement {
 
 		@Override
 		public String toString() {
-			return (value == null) ? "<terminal id=\"" + tagname + "\"/>"
-					: "<terminal id=\"" + tagname + "\" left=\"" + l + "\" right=\"" + r + "\">" + value
-							+ "</terminal>";
+			return text(this);
+		}
+
+		@Override
+		public void appendTo(Appendable out) throws IOException {
+			if (value == null)
+				out.append("<terminal id=\"").append(tagname).append("\"/>");
+			else
+				out.append("<terminal id=\"").append(tagname).append("\" left=\"").append(String.valueOf(l))
+						.append("\" right=\"").append(String.valueOf(r)).append("\">").append(String.valueOf(value))
+						.append("</terminal>");
 		}
 
 		@Override
@@ -0,0 +1,217 @@
+package java_cup.runtime;
+
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import java_cup.runtime.ComplexSymbolFactory.ComplexSymbol;
+import java_cup.runtime.ComplexSymbolFactory.Location;
+
+/**
+ * Writes the parse tree of a streaming parse as XML, without building
+ * XMLElement objects. The parser must be generated with -xmlstream; the
+ * document is the same one that XMLElement.dump writes for the tree of a
+ * parser generated with -xmlactions, except that no user actions are run.
+ * <p>
+ *
+ * LR parsers complete an element only after all of its children, while XML
+ * needs its start tag first, so nothing can be written before the start
+ * production is reduced. Until then the elements are kept as events in a few
+ * int arrays, chained together per stack frame, and the frames only hold the
+ * ends of their chains. The document is written on the reduction of the start
+ * production.
+ * <p>
+ *
+ * Example: <code>
+ * ScannerBuffer lexer = new ScannerBuffer(new Lexer(reader, csf));
+ * Parser p = new Parser(lexer, csf);
+ * p.stream_parse(new XMLStreamListener(p, lexer, writer));
+ * </code>
+ *
+ * @see java_cup.runtime.lr_parser#stream_parse(ParseListener)
+ */
+public class XMLStreamListener implements ParseListener {
+	/** Event kinds. */
+	private static final byte START = 0, END = 1, TERMINAL = 2;
+
+	private final String[] tags;
+	private final short[][] table;
+	private final int start_production;
+	private final ScannerBuffer buffer;
+	private final XMLStreamWriter writer;
+	private final String[] blacklist;
+
+	/**
+	 * Events, linked by ev_next. A start event has its tag, variant and the
+	 * terminal giving the left location, an end event the terminal giving the
+	 * right location, and a terminal event its tag and terminal.
+	 */
+	private byte[] ev_kind = new byte[256];
+	private int[] ev_tag = new int[256], ev_variant = new int[256], ev_sym = new int[256], ev_next = new int[256];
+	private int ev_count;
+
+	/** Terminals of the terminal events. */
+	private Symbol[] syms = new Symbol[64];
+	private int sym_count;
+
+	/**
+	 * Stack frames: the first and last event of their chain (-1 if none), the
+	 * terminals giving their left and right location (-1 if none), and the
+	 * token of shifted frames.
+	 */
+	private int[] f_first = new int[64], f_last = new int[64], f_left = new int[64], f_right = new int[64];
+	private Symbol[] f_token = new Symbol[64];
+	private int f_top = -1;
+
+	/**
+	 * Creates a listener writing the document for the given parser
+	 *
+	 * @param parser    the parser, generated with -xmlstream
+	 * @param buffer    the buffer of the scanner for the tokensequence, or null
+	 * @param writer    the destination, closed when the document is written
+	 * @param blacklist symbols to list in the blacklist element
+	 */
+	public XMLStreamListener(lr_parser parser, ScannerBuffer buffer, XMLStreamWriter writer, String... blacklist) {
+		tags = parser.xml_tags();
+		table = parser.xml_table();
+		if (tags == null || table == null)
+			throw new IllegalArgumentException("Parser was not generated with -xmlstream");
+		start_production = parser.start_production();
+		this.buffer = buffer;
+		this.writer = writer;
+		this.blacklist = blacklist;
+	}
+
+	@Override
+	public void onShift(Symbol token) {
+		push();
+		f_first[f_top] = f_last[f_top] = f_left[f_top] = f_right[f_top] = -1;
+		f_token[f_top] = token;
+	}
+
+	@Override
+	public void onReduce(int production, int lhs, int left, int right) throws XMLStreamException {
+		short[] row = table[production];
+		int n = row.length - 2;
+		int base = f_top - n + 1;
+		int first = event(START, row[0], row[1]);
+		int last = first, l = -1, r = -1;
+		for (int i = 0; i < n; i++) {
+			int f = base + i, child = row[i + 2];
+			if (child == -2) {
+				ev_next[last] = f_first[f];
+				last = f_last[f];
+				if (l < 0)
+					l = f_left[f];
+				if (f_right[f] >= 0)
+					r = f_right[f];
+			} else if (child >= 0) {
+				Symbol token = f_token[f];
+				if (sym_count == syms.length)
+					syms = Arrays.copyOf(syms, sym_count * 2);
+				int s = sym_count++;
+				syms[s] = token;
+				int t = event(TERMINAL, child, 0);
+				ev_sym[t] = s;
+				ev_next[last] = t;
+				last = t;
+				if (l < 0 && left(token) != null)
+					l = s;
+				if (right(token) != null)
+					r = s;
+			}
+		}
+		ev_sym[first] = l;
+		int end = event(END, 0, 0);
+		ev_sym[end] = r;
+		ev_next[last] = end;
+
+		/* pop the handle and push the element */
+		Arrays.fill(f_token, base, f_top + 1, null);
+		f_top = base - 1;
+		push();
+		f_first[f_top] = first;
+		f_last[f_top] = end;
+		f_left[f_top] = l;
+		f_right[f_top] = r;
+
+		if (production == start_production)
+			write(first, end);
+	}
+
+	private void push() {
+		if (++f_top == f_first.length) {
+			int n = f_top * 2;
+			f_first = Arrays.copyOf(f_first, n);
+			f_last = Arrays.copyOf(f_last, n);
+			f_left = Arrays.copyOf(f_left, n);
+			f_right = Arrays.copyOf(f_right, n);
+			f_token = Arrays.copyOf(f_token, n);
+		}
+	}
+
+	private int event(byte kind, int tag, int variant) {
+		if (ev_count == ev_kind.length) {
+			int n = ev_count * 2;
+			ev_kind = Arrays.copyOf(ev_kind, n);
+			ev_tag = Arrays.copyOf(ev_tag, n);
+			ev_variant = Arrays.copyOf(ev_variant, n);
+			ev_sym = Arrays.copyOf(ev_sym, n);
+			ev_next = Arrays.copyOf(ev_next, n);
+		}
+		ev_kind[ev_count] = kind;
+		ev_tag[ev_count] = tag;
+		ev_variant[ev_count] = variant;
+		ev_next[ev_count] = -1;
+		return ev_count++;
+	}
+
+	private static Location left(Symbol s) {
+		return s instanceof ComplexSymbol ? ((ComplexSymbol) s).getLeft() : null;
+	}
+
+	private static Location right(Symbol s) {
+		return s instanceof ComplexSymbol ? ((ComplexSymbol) s).getRight() : null;
+	}
+
+	/** Writes the document with the chain from first to last as parse tree. */
+	private void write(int first, int last) throws XMLStreamException {
+		XMLElement.dumpStart(writer, blacklist);
+		for (int e = first;; e = ev_next[e]) {
+			switch (ev_kind[e]) {
+			case START:
+				writer.writeStartElement("nonterminal");
+				writer.writeAttribute("id", tags[ev_tag[e]]);
+				writer.writeAttribute("variant", ev_variant[e] + "");
+				if (ev_sym[e] >= 0)
+					left(syms[ev_sym[e]]).toXML(writer, "left");
+				break;
+			case END:
+				if (ev_sym[e] >= 0)
+					right(syms[ev_sym[e]]).toXML(writer, "right");
+				writer.writeEndElement();
+				break;
+			default:
+				Symbol s = syms[ev_sym[e]];
+				writer.writeStartElement("terminal");
+				writer.writeAttribute("id", tags[ev_tag[e]]);
+				writer.writeAttribute("left", left(s) + "");
+				writer.writeAttribute("right", right(s) + "");
+				if (s.value != null)
+					writer.writeCharacters(s.value + "");
+				writer.writeEndElement();
+			}
+			if (e == last)
+				break;
+		}
+		XMLElement.dumpEnd(buffer, writer);
+
+		/* drop the events */
+		ev_count = 0;
+		Arrays.fill(syms, 0, sym_count, null);
+		sym_count = 0;
+		Arrays.fill(f_token, 0, f_top + 1, null);
+		f_top = -1;
+	}
+}
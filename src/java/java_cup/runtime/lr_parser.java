@@ -2,6 +2,7 @@
 package java_cup.runtime;
 
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Stack;
@@ -232,6 +233,90 @@ public abstract class lr_parser {
 
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
 
+  /**
+   * The conflict table, supplied by generated subclasses only with the -glr
+   * option. Each row holds the actions of a state that lost a conflict which
+   * could not be resolved by precedence, as pairs of terminal index and action
+   * (encoded as in the action table). These are ignored by this parser; the GLR
+   * runtime follows them in addition to the entries of the action table.
+   *
+   * @return the conflict table, or null if none was generated.
+   * @see java_cup.runtime.GLRParser
+   */
+  public short[][] conflict_table() {
+    return null;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * The expected terminal table (supplied by generated subclass). It holds a row
+   * of bits for each state, one for each terminal in 16 bit words, lowest bit
+   * first, set if the terminal is valid in the state once its reductions are
+   * followed. Parsers generated by older versions do not supply it, and the
+   * expected terminals are then those the action row has an entry for.
+   *
+   * @return the expected terminal table, or null if none was generated.
+   * @see java_cup.runtime.lr_parser#expected_token_ids
+   */
+  public short[][] expected_table() {
+    return null;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * The names of the terminals, by index (supplied by generated subclass). If
+   * not supplied, names are looked up by reflection on getSymbolContainer().
+   *
+   * @return the names of the terminals, or null.
+   */
+  public String[] terminal_names() {
+    return null;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * The XML tags of nonterminals and labeled terminals (supplied by generated
+   * subclass when generated with -xmlstream).
+   *
+   * @return the XML tags, or null if none were generated.
+   * @see java_cup.runtime.XMLStreamListener
+   */
+  public String[] xml_tags() {
+    return null;
+  }
+
+  /**
+   * The XML table (supplied by generated subclass when generated with
+   * -xmlstream). For each production it holds the tag and variant of its
+   * element, followed by one entry per right hand side symbol: -1 for symbols
+   * left out, -2 for nonterminal children and the tag of terminal children.
+   *
+   * @return the XML table, or null if none was generated.
+   * @see java_cup.runtime.XMLStreamListener
+   */
+  public short[][] xml_table() {
+    return null;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * The error shift table (supplied by generated subclass). For each state it
+   * holds the state reached by shifting the error Symbol, or -1 if the state
+   * can't shift it. If not supplied, error recovery looks the shifts up in the
+   * action table.
+   *
+   * @return the error shift table, or null if none was generated.
+   */
+  public short[] error_table() {
+    return null;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
   /** The index of the start state (supplied by generated subclass). */
   public abstract int start_state();
 
@@ -269,6 +354,62 @@ public abstract class lr_parser {
     _done_parsing = true;
   }
 
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Internal flag to indicate that the tables and the action object have been
+   * set up once by reset() and are kept for all following parses.
+   */
+  protected boolean _session = false;
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /** The dummy Symbol with the start state, kept for a session of parses. */
+  protected Symbol _start_symbol;
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Prepare this parser for parsing another input from the given scanner. The
+   * first call sets up the tables and the action object; they are then kept, so
+   * that following calls of parse() do no per input setup apart from
+   * user_init(). This allows one parser instance to parse many small inputs back
+   * to back. A parser must not be used by more than one thread at a time, see
+   * ParserPool for keeping one instance per thread.
+   *
+   * @param s the scanner to read the next input from, or null to keep the
+   *          current one.
+   */
+  public void reset(Scanner s) throws java.lang.Exception {
+    if (!_session) {
+      production_tab = production_table();
+      action_tab = action_table();
+      reduce_tab = reduce_table();
+      init_actions();
+      _session = true;
+    }
+    if (s != null)
+      setScanner(s);
+    stack.removeAllElements();
+    tos = 0;
+    cur_token = null;
+    _done_parsing = false;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * The dummy Symbol with the start state that goes on the bottom of the stack.
+   * Within a session of parses, the same Symbol is used for all inputs.
+   */
+  protected Symbol start_symbol() {
+    if (!_session)
+      return getSymbolFactory().startSymbol("START", 0, start_state());
+    if (_start_symbol == null)
+      _start_symbol = getSymbolFactory().startSymbol("START", 0, start_state());
+    return _start_symbol;
+  }
+
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
   /*
    * Global parse state shared by parse(), error recovery, and debugging routines
@@ -317,6 +458,9 @@ public abstract class lr_parser {
    */
   public void setScanner(Scanner s) {
     _scanner = s;
+    scan_pos = scan_len = 0;
+    if (scan_batch != null)
+      Arrays.fill(scan_batch, null);
   }
 
   /**
@@ -326,6 +470,38 @@ public abstract class lr_parser {
     return _scanner;
   }
 
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /** Table sharing identical subtrees of the parse tree, or null. */
+  protected SyntaxTreeSharing _tree_sharing;
+
+  /**
+   * Simple accessor method to set the table with which parsers generated with
+   * -xmlactions share identical subtrees of their parse tree. Null, the
+   * default, builds a distinct element for every subtree.
+   */
+  public void setTreeSharing(SyntaxTreeSharing s) {
+    _tree_sharing = s;
+  }
+
+  /**
+   * Simple accessor method to get the table for sharing subtrees.
+   */
+  public SyntaxTreeSharing getTreeSharing() {
+    return _tree_sharing;
+  }
+
+  /**
+   * Shares a new element of the parse tree, if a table for sharing subtrees
+   * is set (called by parsers generated with -xmlactions).
+   *
+   * @param e the new element
+   * @return the shared element, or e
+   */
+  public XMLElement share(XMLElement e) {
+    return _tree_sharing == null ? e : _tree_sharing.share(e);
+  }
+
   /*-----------------------------------------------------------*/
   /*--- General Methods ---------------------------------------*/
   /*-----------------------------------------------------------*/
@@ -373,14 +549,81 @@ public abstract class lr_parser {
    * getScanner().next_token(); this implementation can be overriden by the
    * generated parser using the code declared in the "scan with" clause. Do not
    * recycle objects; every call to scan() should return a fresh object.
+   * <p>
+   * If the scanner is a BatchScanner, Symbols are read in batches of
+   * scan_batch_size() and handed out from the batch.
    */
   public Symbol scan() throws java.lang.Exception {
-    Symbol sym = getScanner().next_token();
+    if (scan_pos < scan_len)
+      return scan_batch[scan_pos++];
+    Scanner s = getScanner();
+    Symbol sym;
+    if (s instanceof BatchScanner) {
+      if (scan_batch == null)
+        scan_batch = new Symbol[Math.max(1, scan_batch_size())];
+      scan_len = ((BatchScanner) s).next_tokens(scan_batch, 0, scan_batch.length);
+      scan_pos = 0;
+      sym = scan_len > 0 ? scan_batch[scan_pos++] : null;
+    } else
+      sym = s.next_token();
     return (sym != null) ? sym : getSymbolFactory().newSymbol("END_OF_FILE", EOF_sym());
   }
 
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
 
+  /** Symbols read from a BatchScanner and not handed out yet. */
+  private Symbol scan_batch[];
+
+  /** Position of the next Symbol in scan_batch. */
+  private int scan_pos;
+
+  /** Number of Symbols in scan_batch. */
+  private int scan_len;
+
+  /**
+   * The number of Symbols read per call of a BatchScanner.
+   */
+  public int scan_batch_size() {
+    return 256;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /** Symbols read ahead by error repair and pushed back into the input. */
+  protected Symbol pending[];
+
+  /** Position of the next pushed back Symbol. */
+  protected int pending_pos;
+
+  /** Number of pushed back Symbols. */
+  protected int pending_len;
+
+  /**
+   * Get the next Symbol for the parser: the next one pushed back by error repair
+   * if there are any, otherwise the next one from scan().
+   */
+  protected Symbol next_token() throws java.lang.Exception {
+    if (pending_pos < pending_len)
+      return pending[pending_pos++];
+    return scan();
+  }
+
+  /**
+   * Push back Symbols into the input, to be read again before any from scan().
+   */
+  protected void push_back(Symbol[] syms, int from, int to) {
+    int left = pending_len - pending_pos;
+    Symbol[] buf = new Symbol[left + to - from];
+    System.arraycopy(syms, from, buf, 0, to - from);
+    if (left > 0)
+      System.arraycopy(pending, pending_pos, buf, to - from, left);
+    pending = buf;
+    pending_pos = 0;
+    pending_len = buf.length;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
   /**
    * Report a fatal error. This method takes a message string and an additional
    * object (to be used by specializations implemented in subclasses). Here in the
@@ -468,6 +711,9 @@ public abstract class lr_parser {
    * @return (non)terminal name as string
    */
   public String symbl_name_from_id(int id) {
+    String[] names = terminal_names();
+    if (names != null && id >= 0 && id < names.length)
+      return names[id];
     Field[] fields = getSymbolContainer().getFields();
     for (Field f : fields) {
       try {
@@ -490,63 +736,25 @@ public abstract class lr_parser {
   public List<Integer> expected_token_ids() {
     List<Integer> ret = new LinkedList<>();
     int parse_state = stack.peek().parse_state;
+    short[][] expected = expected_table();
+    if (expected != null) {
+      /* read off the bits of the state, the reductions are followed already */
+      short[] bits = expected[parse_state];
+      for (int w = 0; w < bits.length; w++)
+        for (int b = bits[w] & 0xFFFF; b != 0; b &= b - 1)
+          ret.add(Integer.valueOf((w << 4) + Integer.numberOfTrailingZeros(b)));
+      return ret;
+    }
+    /* no table, so take the terminals the row has an entry for */
     short[] row = action_tab[parse_state];
     for (int i = 0; i < row.length; i += 2) {
       if (row[i] == -1)
         continue;
-      if (!validate_expected_symbol(row[i]))
-        continue;
       ret.add(Integer.valueOf(row[i]));
     }
     return ret;
   }
 
-  private boolean validate_expected_symbol(int id) {
-    short lhs, rhs_size;
-    int act;
-    try {
-      virtual_parse_stack vstack = new virtual_parse_stack(stack);
-      /* parse until we fail or get past the lookahead input */
-      for (;;) {
-        /* look up the action from the current state (on top of stack) */
-        act = get_action(vstack.top(), id);
-
-        /* if its an error, we fail */
-        if (act == 0)
-          return false;
-
-        /* > 0 encodes a shift */
-        if (act > 0) {
-          /* push the new state on the stack */
-          vstack.push(act - 1);
-
-          /* advance simulated input, if we run off the end, we are done */
-          if (!advance_lookahead())
-            return true;
-        }
-        /* < 0 encodes a reduce */
-        else {
-          /* if this is a reduce with the start production we are done */
-          if ((-act) - 1 == start_production())
-            return true;
-
-          /* get the lhs Symbol and the rhs size */
-          lhs = production_tab[(-act) - 1][0];
-          rhs_size = production_tab[(-act) - 1][1];
-          /* pop handle off the stack */
-          for (int i = 0; i < rhs_size; i++)
-            vstack.pop();
-
-          vstack.push(get_reduce(vstack.top(), lhs));
-        }
-      }
-
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-    return true;
-  }
-
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
 
   /**
@@ -664,23 +872,25 @@ public abstract class lr_parser {
     short handle_size, lhs_sym_num;
 
     /* set up direct reference to tables to drive the parser */
+    if (!_session) {
+      production_tab = production_table();
+      action_tab = action_table();
+      reduce_tab = reduce_table();
 
-    production_tab = production_table();
-    action_tab = action_table();
-    reduce_tab = reduce_table();
-
-    /* initialize the action encapsulation object */
-    init_actions();
+      /* initialize the action encapsulation object */
+      init_actions();
+    }
 
     /* do user initialization */
     user_init();
 
     /* get the first token */
-    cur_token = scan();
+    pending_len = 0;
+    cur_token = next_token();
 
     /* push dummy Symbol with start state to get us underway */
     stack.removeAllElements();
-    stack.push(getSymbolFactory().startSymbol("START", 0, start_state()));
+    stack.push(start_symbol());
     tos = 0;
 
     /* continue until we are told to stop */
@@ -703,7 +913,7 @@ public abstract class lr_parser {
         tos++;
 
         /* advance to the next Symbol */
-        cur_token = scan();
+        cur_token = next_token();
       }
       /* if its less than zero, then it encodes a reduce action */
       else if (act < 0) {
@@ -734,6 +944,10 @@ public abstract class lr_parser {
         /* call user syntax error reporting routine */
         syntax_error(cur_token);
 
+        /* try to repair the input, if asked to */
+        if (use_error_repair() && error_repair(false))
+          continue;
+
         /* try to error recover */
         if (!error_recovery(false)) {
           /* if that fails give up with a fatal syntax error */
@@ -751,6 +965,117 @@ public abstract class lr_parser {
 
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
 
+  /**
+   * Perform a parse that reports its moves to a listener instead of carrying
+   * out actions. Only parse states and the left and right positions of the
+   * Symbols are kept on the stack, and shifted tokens are dropped as soon as the
+   * listener has seen them, so memory is bounded by the depth of the stack and
+   * not by the size of the input. No semantic values are built: do_action() is
+   * never called, and neither is init_actions(). To tell non terminals apart by
+   * their index, generate the symbol class with the -nonterms option.
+   * <p>
+   *
+   * Error recovery is not done on this path; on a syntax error syntax_error()
+   * and unrecovered_syntax_error() are called and the parse ends.
+   *
+   * @param listener the listener to report shifts and reductions to.
+   */
+  public void stream_parse(ParseListener listener) throws java.lang.Exception {
+    /* the current action code */
+    int act;
+
+    /* information about production being reduced with */
+    int prod, handle_size, lhs_sym_num;
+
+    /* set up direct reference to tables to drive the parser */
+    if (!_session) {
+      production_tab = production_table();
+      action_tab = action_table();
+      reduce_tab = reduce_table();
+    }
+
+    /* do user initialization */
+    user_init();
+
+    /* get the first token */
+    cur_token = scan();
+
+    /* parse states and positions, instead of the Symbol stack */
+    int[] states = new int[64];
+    int[] lefts = new int[64];
+    int[] rights = new int[64];
+    int top = 0;
+    states[0] = start_state();
+
+    /* continue until we are told to stop */
+    for (_done_parsing = false; !_done_parsing;) {
+      /* Check current token for freshness. */
+      if (cur_token.used_by_parser)
+        throw new Error("Symbol recycling detected (fix your scanner).");
+
+      /* look up action out of the current state with the current input */
+      act = get_action(states[top], cur_token.sym);
+
+      /* decode the action -- > 0 encodes shift */
+      if (act > 0) {
+        if (++top == states.length) {
+          states = Arrays.copyOf(states, top * 2);
+          lefts = Arrays.copyOf(lefts, top * 2);
+          rights = Arrays.copyOf(rights, top * 2);
+        }
+        states[top] = act - 1;
+        lefts[top] = cur_token.left;
+        rights[top] = cur_token.right;
+        cur_token.parse_state = act - 1;
+        cur_token.used_by_parser = true;
+        listener.onShift(cur_token);
+
+        /* advance to the next Symbol */
+        cur_token = scan();
+      }
+      /* if its less than zero, then it encodes a reduce action */
+      else if (act < 0) {
+        prod = (-act) - 1;
+        lhs_sym_num = production_tab[prod][0];
+        handle_size = production_tab[prod][1];
+
+        /* an empty handle is located at the end of what is on the stack */
+        int left = handle_size == 0 ? rights[top] : lefts[top - handle_size + 1];
+        int right = rights[top];
+        listener.onReduce(prod, lhs_sym_num, left, right);
+        if (prod == start_production()) {
+          done_parsing();
+          break;
+        }
+
+        /* pop the handle and push the left hand side in its goto state */
+        top -= handle_size;
+        act = get_reduce(states[top], lhs_sym_num);
+        if (++top == states.length) {
+          states = Arrays.copyOf(states, top * 2);
+          lefts = Arrays.copyOf(lefts, top * 2);
+          rights = Arrays.copyOf(rights, top * 2);
+        }
+        states[top] = act;
+        lefts[top] = left;
+        rights[top] = right;
+      }
+      /* finally if the entry is zero, we have an error */
+      else if (act == 0) {
+        /* call user syntax error reporting routine */
+        syntax_error(cur_token);
+
+        /* no recovery without the Symbols on the stack */
+        unrecovered_syntax_error(cur_token);
+
+        /* just in case that wasn't fatal enough, end parse */
+        done_parsing();
+      }
+    }
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
   /**
    * Write a debugging message to System.err for the debugging version of the
    * parser.
@@ -839,26 +1164,29 @@ public abstract class lr_parser {
     short handle_size, lhs_sym_num;
 
     /* set up direct reference to tables to drive the parser */
-    production_tab = production_table();
-    action_tab = action_table();
-    reduce_tab = reduce_table();
+    if (!_session) {
+      production_tab = production_table();
+      action_tab = action_table();
+      reduce_tab = reduce_table();
 
-    debug_message("# Initializing parser");
+      debug_message("# Initializing parser");
 
-    /* initialize the action encapsulation object */
-    init_actions();
+      /* initialize the action encapsulation object */
+      init_actions();
+    }
 
     /* do user initialization */
     user_init();
 
     /* the current Symbol */
-    cur_token = scan();
+    pending_len = 0;
+    cur_token = next_token();
 
     debug_message("# Current Symbol is #" + cur_token.sym);
 
     /* push dummy Symbol with start state to get us underway */
     stack.removeAllElements();
-    stack.push(getSymbolFactory().startSymbol("START", 0, start_state()));
+    stack.push(start_symbol());
     tos = 0;
 
     /* continue until we are told to stop */
@@ -883,7 +1211,7 @@ public abstract class lr_parser {
         tos++;
 
         /* advance to the next Symbol */
-        cur_token = scan();
+        cur_token = next_token();
         debug_message("# Current token is " + cur_token);
       }
       /* if its less than zero, then it encodes a reduce action */
@@ -921,6 +1249,10 @@ public abstract class lr_parser {
         /* call user syntax error reporting routine */
         syntax_error(cur_token);
 
+        /* try to repair the input, if asked to */
+        if (use_error_repair() && error_repair(true))
+          continue;
+
         /* try to error recover */
         if (!error_recovery(true)) {
           /* if that fails give up with a fatal syntax error */
@@ -936,6 +1268,213 @@ public abstract class lr_parser {
     return lhs_sym;
   }
 
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+  /* Error repair code */
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Should a syntax error first be repaired by a minimal change to the input,
+   * before falling back to error recovery? Error repair looks for the cheapest
+   * insertion, deletion or substitution of one or two tokens at the point of
+   * the error that lets the parse continue for error_sync_size() more tokens.
+   * This keeps much more of the input than recovery through the error Symbol,
+   * but inserted Symbols carry no value, which actions must be prepared for.
+   * Defaults to false.
+   */
+  public boolean use_error_repair() {
+    return false;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * The maximum number of candidate repairs tried for one error. Defaults to
+   * 5000.
+   */
+  public int error_repair_max_configs() {
+    return 5000;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * The maximum time spent looking for a repair of one error, in nanoseconds.
+   * Defaults to 2 milliseconds.
+   */
+  public long error_repair_max_nanos() {
+    return 2000000L;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * This method is called when a syntax error has been repaired. Here in the
+   * base class we report the repair through report_error().
+   *
+   * @param cur_token the Symbol the error was found at.
+   * @param deleted   the number of Symbols deleted, starting with cur_token.
+   * @param inserted  the Symbol indexes inserted in their place.
+   */
+  public void syntax_repaired(Symbol cur_token, int deleted, int[] inserted) {
+    StringBuilder sb = new StringBuilder("Repaired by");
+    if (deleted > 0)
+      sb.append(" deleting ").append(deleted).append(deleted == 1 ? " token" : " tokens");
+    if (deleted > 0 && inserted.length > 0)
+      sb.append(" and");
+    if (inserted.length > 0) {
+      sb.append(" inserting");
+      for (int id : inserted)
+        sb.append(' ').append(symbl_name_from_id(id));
+    }
+    report_error(sb.toString(), cur_token);
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * The repairs tried, as pairs of the number of tokens deleted and the number
+   * of tokens inserted (a deletion together with an insertion is a
+   * substitution). They are ordered by cost, the larger of the two numbers,
+   * then by the number of tokens touched, insertions before deletions.
+   */
+  private static final int[][] repairs = { { 0, 1 }, { 1, 0 }, { 1, 1 }, { 0, 2 }, { 2, 0 }, { 1, 2 }, { 2, 1 },
+      { 2, 2 } };
+
+  /** Number of terminals, for the insertion candidates. */
+  private int num_terminals = -1;
+
+  /**
+   * Attempt to repair a syntax error by a minimal change to the input at the
+   * current token. The search is bounded by error_repair_max_configs() and
+   * error_repair_max_nanos(). If a repair is found, the changed input is pushed
+   * back, syntax_repaired() is called, and true is returned; the parser then
+   * continues normally. Otherwise the input is left unchanged.
+   *
+   * @param debug should we produce debugging messages as we parse.
+   */
+  protected boolean error_repair(boolean debug) throws java.lang.Exception {
+    if (debug)
+      debug_message("# Attempting error repair");
+
+    long deadline = System.nanoTime() + error_repair_max_nanos();
+    int configs = error_repair_max_configs();
+
+    /* read ahead the tokens the repair must be checked against */
+    Symbol[] ahead = new Symbol[error_sync_size() + 2];
+    int n = 0;
+    ahead[n++] = cur_token;
+    while (n < ahead.length && ahead[n - 1].sym != EOF_sym())
+      ahead[n++] = next_token();
+    int last = ahead[n - 1].sym == EOF_sym() ? n - 1 : n;
+
+    if (num_terminals < 0) {
+      String[] names = terminal_names();
+      if (names != null)
+        num_terminals = names.length;
+      else
+        for (short[] row : action_tab)
+          for (int i = 0; i < row.length - 2; i += 2)
+            num_terminals = Math.max(num_terminals, row[i] + 1);
+    }
+
+    int[] ins = new int[2];
+    int[] found = null;
+    search: for (int[] r : repairs) {
+      int d = r[0], k = r[1];
+      /* the end of file can't be deleted */
+      if (d > last)
+        continue;
+      if (k == 0) {
+        if (--configs < 0 || System.nanoTime() > deadline)
+          break search;
+        if (repair_parses(ins, 0, ahead, d, n)) {
+          found = new int[] { d };
+          break search;
+        }
+        continue;
+      }
+      for (int t1 = 0; t1 < num_terminals; t1++) {
+        if (t1 == error_sym() || t1 == EOF_sym())
+          continue;
+        ins[0] = t1;
+        if (--configs < 0 || System.nanoTime() > deadline)
+          break search;
+        /* the first token alone must fit before trying more */
+        if (!repair_parses(ins, 1, ahead, d, k == 1 ? n : d))
+          continue;
+        if (k == 1) {
+          found = new int[] { d, t1 };
+          break search;
+        }
+        for (int t2 = 0; t2 < num_terminals; t2++) {
+          if (t2 == error_sym() || t2 == EOF_sym())
+            continue;
+          ins[1] = t2;
+          if (--configs < 0 || System.nanoTime() > deadline)
+            break search;
+          if (repair_parses(ins, 2, ahead, d, n)) {
+            found = new int[] { d, t1, t2 };
+            break search;
+          }
+        }
+      }
+    }
+
+    if (found == null) {
+      /* put back what we read, and leave it to error recovery */
+      if (debug)
+        debug_message("# Error repair fails");
+      push_back(ahead, 1, n);
+      return false;
+    }
+
+    /* push back the changed input and carry on from there */
+    int d = found[0];
+    int[] inserted = new int[found.length - 1];
+    Symbol[] repaired = new Symbol[inserted.length + n - d];
+    for (int i = 0; i < inserted.length; i++) {
+      inserted[i] = found[i + 1];
+      repaired[i] = getSymbolFactory().newSymbol(symbl_name_from_id(inserted[i]), inserted[i]);
+    }
+    System.arraycopy(ahead, d, repaired, inserted.length, n - d);
+    if (debug)
+      debug_message("# Error repaired, deleting " + d + " and inserting " + inserted.length + " Symbol(s)");
+    syntax_repaired(cur_token, d, inserted);
+    push_back(repaired, 1, repaired.length);
+    cur_token = repaired[0];
+    return true;
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Simulate parsing the given inserted Symbol indexes followed by the read
+   * ahead Symbols from..to on a virtual stack, without actions.
+   *
+   * @return true if all of them are consumed without error (or the parse
+   *         accepts).
+   */
+  private boolean repair_parses(int[] ins, int nins, Symbol[] ahead, int from, int to) throws java.lang.Exception {
+    virtual_parse_stack vstack = virtual_stack();
+    for (int i = 0; i < nins + to - from;) {
+      int id = i < nins ? ins[i] : ahead[from + i - nins].sym;
+      int act = get_action(vstack.top(), id);
+      if (act == 0)
+        return false;
+      if (act > 0) {
+        vstack.push(act - 1);
+        i++;
+      } else {
+        if ((-act) - 1 == start_production())
+          return true;
+        for (int j = production_tab[(-act) - 1][1]; j > 0; j--)
+          vstack.pop();
+        vstack.push(get_reduce(vstack.top(), production_tab[(-act) - 1][0]));
+      }
+    }
+    return true;
+  }
+
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
   /* Error recovery code */
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
@@ -988,7 +1527,7 @@ public abstract class lr_parser {
       }
 
       /* if we are now at EOF, we have failed */
-      if (lookahead[0].sym == EOF_sym()) {
+      if (lookahead[lookahead_start].sym == EOF_sym()) {
         if (debug)
           debug_message("# Error recovery fails at EOF");
         return false;
@@ -1001,7 +1540,7 @@ public abstract class lr_parser {
       // It is the first token that is being consumed, not the one
       // we were up to parsing
       if (debug)
-        debug_message("# Consuming Symbol #" + lookahead[0].sym);
+        debug_message("# Consuming Symbol #" + lookahead[lookahead_start].sym);
       restart_lookahead();
     }
 
@@ -1024,6 +1563,9 @@ public abstract class lr_parser {
    */
   protected boolean shift_under_error() {
     /* is there a shift under error Symbol */
+    short[] error_tab = error_table();
+    if (error_tab != null)
+      return error_tab[stack.peek().parse_state] >= 0;
     return get_action(stack.peek().parse_state, error_sym()) > 0;
   }
 
@@ -1047,24 +1589,31 @@ public abstract class lr_parser {
     Symbol right = stack.peek();// TUM 20060327 removed .right
     Symbol left = right;// TUM 20060327 removed .left
 
-    /* pop down until we can shift under error Symbol */
-    while (!shift_under_error()) {
-      /* pop the stack */
+    /* look down until we find a state that can shift under error Symbol */
+    short[] error_tab = error_table();
+    int top = stack.size() - 1;
+    while (error_tab != null ? error_tab[stack.elementAt(top).parse_state] < 0
+        : get_action(stack.elementAt(top).parse_state, error_sym()) <= 0) {
       if (debug)
-        debug_message("# Pop stack by one, state was # " + stack.peek().parse_state);
-      left = stack.pop(); // TUM 20060327 removed .left
-      tos--;
+        debug_message("# Pop stack by one, state was # " + stack.elementAt(top).parse_state);
+      left = stack.elementAt(top); // TUM 20060327 removed .left
 
       /* if we have hit bottom, we fail */
-      if (stack.empty()) {
+      if (--top < 0) {
+        tos -= stack.size();
+        stack.removeAllElements();
         if (debug)
           debug_message("# No recovery state found on stack");
         return false;
       }
     }
 
+    /* pop everything above it at once */
+    tos -= stack.size() - 1 - top;
+    stack.setSize(top + 1);
+
     /* state on top of the stack can shift under error, find the shift */
-    act = get_action(stack.peek().parse_state, error_sym());
+    act = error_tab != null ? error_tab[stack.peek().parse_state] + 1 : get_action(stack.peek().parse_state, error_sym());
     if (debug) {
       debug_message("# Recover state found (#" + stack.peek().parse_state + ")");
       debug_message("# Shifting on error to state #" + (act - 1));
@@ -1082,28 +1631,54 @@ public abstract class lr_parser {
 
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
 
-  /** Lookahead Symbols used for attempting error recovery "parse aheads". */
+  /**
+   * Lookahead Symbols used for attempting error recovery "parse aheads". This is
+   * a ring buffer starting at lookahead_start, which is kept across error
+   * recoveries.
+   */
   protected Symbol lookahead[];
 
+  /** Index of the first Symbol in the lookahead ring buffer. */
+  protected int lookahead_start;
+
   /** Position in lookahead input buffer used for "parse ahead". */
   protected int lookahead_pos;
 
+  /** Virtual parse stack reused by all "parse aheads". */
+  protected virtual_parse_stack virtual_stack;
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
+  /**
+   * Return the virtual parse stack, set up to shadow the (real) parse stack. The
+   * same object is returned every time, so it must not be kept across calls.
+   */
+  protected virtual_parse_stack virtual_stack() throws java.lang.Exception {
+    if (virtual_stack == null)
+      virtual_stack = new virtual_parse_stack(stack);
+    else
+      virtual_stack.reset(stack);
+    return virtual_stack;
+  }
+
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
 
   /**
    * Read from input to establish our buffer of "parse ahead" lookahead Symbols.
    */
   protected void read_lookahead() throws java.lang.Exception {
-    /* create the lookahead array */
-    lookahead = new Symbol[error_sync_size()];
+    /* create the lookahead array, unless we have one of the right size */
+    if (lookahead == null || lookahead.length != error_sync_size())
+      lookahead = new Symbol[error_sync_size()];
 
     /* fill in the array */
-    for (int i = 0; i < error_sync_size(); i++) {
+    for (int i = 0; i < lookahead.length; i++) {
       lookahead[i] = cur_token;
-      cur_token = scan();
+      cur_token = next_token();
     }
 
     /* start at the beginning */
+    lookahead_start = 0;
     lookahead_pos = 0;
   }
 
@@ -1111,7 +1686,8 @@ public abstract class lr_parser {
 
   /** Return the current lookahead in our error "parse ahead" buffer. */
   protected Symbol cur_err_token() {
-    return lookahead[lookahead_pos];
+    int i = lookahead_start + lookahead_pos;
+    return lookahead[i < lookahead.length ? i : i - lookahead.length];
   }
 
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
@@ -1135,17 +1711,18 @@ public abstract class lr_parser {
    * recovery (this consumes one new Symbol from the real input).
    */
   protected void restart_lookahead() throws java.lang.Exception {
-    /* move all the existing input over */
-    for (int i = 1; i < error_sync_size(); i++)
-      lookahead[i - 1] = lookahead[i];
-
-    /* read a new Symbol into the last spot */
+    /*
+     * read a new Symbol into the spot of the first one, which then becomes the
+     * last spot of the ring buffer
+     */
     // BUG Fix by Bruce Hutton
     // Computer Science Department, University of Auckland,
     // Auckland, New Zealand. [applied 5-sep-1999 by csa]
     // The following two lines were out of order!!
-    lookahead[error_sync_size() - 1] = cur_token;
-    cur_token = scan();
+    lookahead[lookahead_start] = cur_token;
+    cur_token = next_token();
+    if (++lookahead_start == lookahead.length)
+      lookahead_start = 0;
 
     /* reset our internal position marker */
     lookahead_pos = 0;
@@ -1166,8 +1743,23 @@ public abstract class lr_parser {
     int act;
     short lhs, rhs_size;
 
-    /* create a virtual stack from the real parse stack */
-    virtual_parse_stack vstack = new virtual_parse_stack(stack);
+    /*
+     * a Symbol the state after the error can't take won't parse after any
+     * reductions either, so don't bother simulating
+     */
+    short[][] expected = expected_table();
+    if (expected != null) {
+      int id = cur_err_token().sym;
+      short[] bits = expected[stack.peek().parse_state];
+      if (id >> 4 >= bits.length || (bits[id >> 4] & (1 << (id & 15))) == 0) {
+        if (debug)
+          debug_message("# Parse-ahead can't start with Symbol #" + id);
+        return false;
+      }
+    }
+
+    /* set up the virtual stack over the real parse stack */
+    virtual_parse_stack vstack = virtual_stack();
 
     /* parse until we fail or get past the lookahead input */
     for (;;) {
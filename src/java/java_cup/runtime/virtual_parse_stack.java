@@ -1,6 +1,7 @@
 
 package java_cup.runtime;
 
+import java.util.Arrays;
 import java.util.Stack;
 
 /**
@@ -26,17 +27,7 @@ public class virtual_parse_stack {
 
   /** Constructor to build a virtual stack out of a real stack. */
   public virtual_parse_stack(Stack<Symbol> shadowing_stack) throws java.lang.Exception {
-    /* sanity check */
-    if (shadowing_stack == null)
-      throw new Exception("Internal parser error: attempt to create null virtual stack");
-
-    /* set up our internals */
-    real_stack = shadowing_stack;
-    vstack = new Stack<>();
-    real_next = 0;
-
-    /* get one element onto the virtual portion of the stack */
-    get_from_real();
+    reset(shadowing_stack);
   }
 
   /*-----------------------------------------------------------*/
@@ -61,37 +52,57 @@ public class virtual_parse_stack {
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
 
   /**
-   * The virtual top portion of the stack. This stack contains Integer objects
-   * with state numbers. This stack shadows the top portion of the real stack
-   * within the area that has been modified (via operations on the virtual stack).
-   * When this portion of the stack becomes empty we transfer elements from the
-   * underlying stack onto this stack.
+   * The virtual top portion of the stack. This array contains state numbers,
+   * the top one at index size-1. This stack shadows the top portion of the
+   * real stack within the area that has been modified (via operations on the
+   * virtual stack). When this portion of the stack becomes empty we transfer
+   * elements from the underlying stack onto this stack. The array is kept (and
+   * grown as needed) across reset() calls.
    */
-  protected Stack<Integer> vstack;
+  private int[] states = new int[16];
+
+  /** The number of states on the virtual portion of the stack. */
+  private int size;
 
   /*-----------------------------------------------------------*/
   /*--- General Methods ---------------------------------------*/
   /*-----------------------------------------------------------*/
 
+  /**
+   * Start over shadowing the given real stack, reusing this object (and its
+   * storage) for another parse ahead.
+   */
+  public void reset(Stack<Symbol> shadowing_stack) throws java.lang.Exception {
+    /* sanity check */
+    if (shadowing_stack == null)
+      throw new Exception("Internal parser error: attempt to create null virtual stack");
+
+    /* set up our internals */
+    real_stack = shadowing_stack;
+    size = 0;
+    real_next = 0;
+
+    /* get one element onto the virtual portion of the stack */
+    get_from_real();
+  }
+
+  /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
+
   /**
    * Transfer an element from the real to the virtual stack. This assumes that the
    * virtual stack is currently empty.
    */
   protected void get_from_real() {
-    Symbol stack_sym;
-
     /* don't transfer if the real stack is empty */
     if (real_next >= real_stack.size())
       return;
 
-    /* get a copy of the first Symbol we have not transfered */
-    stack_sym = real_stack.elementAt(real_stack.size() - 1 - real_next);
-
-    /* record the transfer */
+    /*
+     * put the state number from the first Symbol we have not transfered onto the
+     * virtual stack and record the transfer
+     */
+    push(real_stack.elementAt(real_stack.size() - 1 - real_next).parse_state);
     real_next++;
-
-    /* put the state number from the Symbol onto the virtual stack */
-    vstack.push(Integer.valueOf(stack_sym.parse_state));
   }
 
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
@@ -99,34 +110,34 @@ public class virtual_parse_stack {
   /** Indicate whether the stack is empty. */
   public boolean empty() {
     /*
-     * if vstack is empty then we were unable to transfer onto it and the whole
+     * if the virtual portion is empty then we were unable to transfer onto it and the whole
      * thing is empty.
      */
-    return vstack.empty();
+    return size == 0;
   }
 
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
 
   /** Return value on the top of the stack (without popping it). */
   public int top() throws java.lang.Exception {
-    if (vstack.empty())
+    if (size == 0)
       throw new Exception("Internal parser error: top() called on empty virtual stack");
 
-    return vstack.peek().intValue();
+    return states[size - 1];
   }
 
   /* . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . */
 
   /** Pop the stack. */
   public void pop() throws java.lang.Exception {
-    if (vstack.empty())
+    if (size == 0)
       throw new Exception("Internal parser error: pop from empty virtual stack");
 
     /* pop it */
-    vstack.pop();
+    size--;
 
     /* if we are now empty transfer an element (if there is one) */
-    if (vstack.empty())
+    if (size == 0)
       get_from_real();
   }
 
@@ -134,7 +145,9 @@ public class virtual_parse_stack {
 
   /** Push a state number onto the stack. */
   public void push(int state_num) {
-    vstack.push(Integer.valueOf(state_num));
+    if (size == states.length)
+      states = Arrays.copyOf(states, size * 2);
+    states[size++] = state_num;
   }
 
   /*-----------------------------------------------------------*/